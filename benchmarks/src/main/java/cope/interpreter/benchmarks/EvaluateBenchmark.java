@@ -0,0 +1,138 @@
+package cope.interpreter.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cope.interpreter.Interpreter;
+import cope.interpreter.Variable;
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.compiler.CompactFunction;
+import cope.interpreter.compiler.EvaluationPlan;
+import cope.interpreter.compiler.FunctionCompiler;
+import cope.interpreter.compiler.StackProgram;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Benchmarks evaluating a generated function at a single point through each
+ * of the evaluation paths, and over a batch of points at once. Batch results
+ * are reported per point so they can be compared with the others.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluateBenchmark
+{
+	private static final int BATCH_SIZE = 4096;
+
+	@Param({"10", "100", "1000"})
+	public int operations;
+
+	private Function function;
+	private Function bound;
+	private CompiledFunction compiled;
+	private EvaluationPlan plan;
+	private double[] temps;
+	private CompactFunction compact;
+	private double[] compactTemps;
+	private StackProgram program;
+	private double[] frame;
+
+	private ArrayList<Variable> variables;
+	private double[] point;
+	private double[][] columns;
+	private double[] out;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		function = new Interpreter().parse(Expressions.generate(operations, 42), "x", "y");
+		bound = function.bind("x", "y");
+		compiled = new FunctionCompiler().compile(function, "x", "y");
+		plan = new EvaluationPlan(function, "x", "y");
+		temps = new double[plan.getSize()];
+		compact = new CompactFunction(function, "x", "y");
+		compactTemps = new double[compact.getSize()];
+		program = new StackProgram(function, "x", "y");
+		frame = new double[program.getFrameSize()];
+
+		variables = new ArrayList<Variable>();
+		variables.add(new Variable("x", 0.7));
+		variables.add(new Variable("y", 1.3));
+		point = new double[] { 0.7, 1.3 };
+
+		Random random = new Random(42);
+		columns = new double[2][BATCH_SIZE];
+		for (int i = 0; i < BATCH_SIZE; i++) {
+			columns[0][i] = random.nextDouble();
+			columns[1][i] = 1 + random.nextDouble();
+		}
+		out = new double[BATCH_SIZE];
+	}
+
+	@Benchmark
+	public float evaluateVariables() throws Exception
+	{
+		return function.evaluate(variables);
+	}
+
+	@Benchmark
+	public double evaluateVariablesDouble() throws Exception
+	{
+		return function.evaluateDouble(variables);
+	}
+
+	@Benchmark
+	public double evaluateSlots()
+	{
+		return bound.evaluate(point);
+	}
+
+	@Benchmark
+	public double evaluateCompiled()
+	{
+		return compiled.applyAsDouble(point);
+	}
+
+	@Benchmark
+	public double evaluatePlan()
+	{
+		return plan.evaluate(point, temps);
+	}
+
+	@Benchmark
+	public double evaluateCompact()
+	{
+		return compact.evaluate(point, compactTemps);
+	}
+
+	@Benchmark
+	public double evaluateStack()
+	{
+		return program.evaluate(point, frame);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH_SIZE)
+	public double[] evaluateBatch()
+	{
+		bound.evaluateBatch(columns, out);
+		return out;
+	}
+}
@@ -0,0 +1,53 @@
+package cope.interpreter.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates random function strings of a given size, deterministically from
+ * a seed, so that every run of a benchmark sees the same inputs.
+ */
+public class Expressions
+{
+	private static final String[] binops = { "+", "-", "*", "/", "^" };
+	private static final String[] unops = { "sin", "cos", "sinh", "cosh", "ln", "sqrt" };
+
+	/**
+	 * @param operations - The number of binary operations in the function.
+	 * @param seed - Seed of the random choices.
+	 * @return A function of x and y.
+	 */
+	public static String generate(int operations, long seed)
+	{
+		StringBuilder str = new StringBuilder();
+		generate(operations, new Random(seed), str);
+		return str.toString();
+	}
+
+	private static void generate(int operations, Random random, StringBuilder str)
+	{
+		if (operations == 0)
+		{
+			int leaf = random.nextInt(4);
+			if (leaf == 0) str.append('x');
+			else if (leaf == 1) str.append('y');
+			else if (leaf == 2) str.append("pi");
+			else str.append(1 + random.nextInt(9));
+			return;
+		}
+
+		boolean unary = random.nextInt(6) == 0;
+		if (unary)
+			str.append(unops[random.nextInt(unops.length)]);
+		str.append('(');
+		int left = random.nextInt(operations);
+		generate(left, random, str);
+		// exponents are kept small so that values stay finite
+		String op = binops[random.nextInt(binops.length)];
+		str.append(op);
+		if (op.equals("^"))
+			str.append(1 + random.nextInt(3));
+		else
+			generate(operations - 1 - left, random, str);
+		str.append(')');
+	}
+}
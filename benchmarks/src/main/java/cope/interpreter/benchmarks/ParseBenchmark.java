@@ -0,0 +1,46 @@
+package cope.interpreter.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cope.interpreter.Interpreter;
+import cope.interpreter.nodes.Function;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParseBenchmark
+{
+	@Param({"10", "100", "1000", "10000"})
+	public int operations;
+
+	private Interpreter interpreter;
+	private String source;
+
+	@Setup
+	public void setup()
+	{
+		interpreter = new Interpreter();
+		source = Expressions.generate(operations, 42);
+	}
+
+	@Benchmark
+	public Function parse() throws Exception
+	{
+		return interpreter.parse(source, "x", "y");
+	}
+}
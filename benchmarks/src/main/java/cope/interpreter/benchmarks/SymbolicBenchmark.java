@@ -0,0 +1,59 @@
+package cope.interpreter.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import cope.interpreter.Interpreter;
+import cope.interpreter.Variable;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Benchmarks simplification and differentiation of generated trees. The
+ * simplification benchmark works on the derivative of the generated
+ * function, which is deep and full of repeated subtrees.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolicBenchmark
+{
+	@Param({"10", "50", "200"})
+	public int operations;
+
+	private Variable x = new Variable("x");
+	private Function function;
+	private Function derivative;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		function = new Interpreter().parse(Expressions.generate(operations, 42), "x", "y");
+		derivative = function.differentiate(x);
+	}
+
+	@Benchmark
+	public Function differentiate()
+	{
+		return function.differentiate(x);
+	}
+
+	@Benchmark
+	public Function simplify()
+	{
+		return derivative.simplify();
+	}
+}
@@ -0,0 +1,292 @@
+package cope.interpreter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import cope.interpreter.compiler.CompactFunction;
+import cope.interpreter.nodes.Function;
+
+/**
+ * A cache of parsed, simplified and differentiated functions kept in a file,
+ * so that a process can start with the functions an earlier one computed
+ * rather than parsing and simplifying them all again. Each function is
+ * stored in the binary format of CompactFunction, under a key made of the
+ * kind of result, the variables and the source string.
+ *
+ * The file is an append-only log of records, each holding its length and a
+ * checksum. When the store is opened the file is mapped into memory and the
+ * keys of its records are read into an index; a function is only read back
+ * into a tree the first time it is asked for. A record left incomplete by a
+ * crash is cut off the end of the file. The file starts with the
+ * configuration of the interpreter, and is emptied if it was written for an
+ * interpreter that parses differently, or by a different version of this
+ * class.
+ *
+ * Functions containing instructions other than the standard ones are kept
+ * in memory but not written to the file. A store can be shared between
+ * threads, but a file must only be open in one store at a time.
+ */
+public class FunctionStore implements Closeable
+{
+	private static final int MAGIC = 0x434f5045;
+	/** Changed whenever the format, or the results of simplify or differentiate, change. */
+	private static final int VERSION = 2;
+
+	private final Interpreter interpreter;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private MappedByteBuffer mapped;
+	private long end;
+
+	private final HashMap<String, Integer> index = new HashMap<String, Integer>();
+	private final HashMap<String, Function> loaded = new HashMap<String, Function>();
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+
+	/**
+	 * Opens the store kept in file, creating the file if it does not exist.
+	 * @param file - The file the functions are kept in.
+	 * @param interpreter - The interpreter used to parse functions that are
+	 * not in the store.
+	 * @throws IOException if the file cannot be read or written.
+	 */
+	public FunctionStore(File file, Interpreter interpreter) throws IOException
+	{
+		this.interpreter = interpreter;
+		this.file = new RandomAccessFile(file, "rw");
+		this.channel = this.file.getChannel();
+
+		byte[] header = header(interpreter);
+		long size = channel.size();
+		if (size > Integer.MAX_VALUE)
+			throw new IOException("Cannot map " + file + ": the file is too large.");
+		mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+		if (size < header.length || !matches(header))
+		{
+			channel.truncate(0);
+			channel.write(ByteBuffer.wrap(header), 0);
+			mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, 0);
+			end = header.length;
+		}
+		else
+		{
+			end = scan(header.length);
+			if (end < size)
+				channel.truncate(end);
+		}
+	}
+
+	private static byte[] header(Interpreter interpreter)
+	{
+		byte[] configuration = interpreter.getConfiguration().getBytes(StandardCharsets.UTF_8);
+		ByteBuffer header = ByteBuffer.allocate(12 + configuration.length);
+		header.putInt(MAGIC).putInt(VERSION).putInt(configuration.length).put(configuration);
+		return header.array();
+	}
+
+	private boolean matches(byte[] header)
+	{
+		byte[] found = new byte[header.length];
+		mapped.get(0, found);
+		return Arrays.equals(header, found);
+	}
+
+	/**
+	 * Indexes the records of the mapped file from position.
+	 * @return The end of the last complete record.
+	 */
+	private long scan(int position)
+	{
+		ByteBuffer buffer = mapped.duplicate();
+		CRC32 crc = new CRC32();
+		while (buffer.limit() - position >= 8)
+		{
+			int length = buffer.getInt(position);
+			int checksum = buffer.getInt(position + 4);
+			int start = position + 8;
+			if (length < 4 || length > buffer.limit() - start)
+				break;
+
+			buffer.limit(start + length).position(start);
+			crc.reset();
+			crc.update(buffer);
+			buffer.limit(buffer.capacity());
+			if ((int) crc.getValue() != checksum)
+				break;
+
+			int keyLength = buffer.getInt(start);
+			if (keyLength < 0 || keyLength > length - 4)
+				break;
+			byte[] key = new byte[keyLength];
+			buffer.get(start + 4, key);
+			index.put(new String(key, StandardCharsets.UTF_8), start + 4 + keyLength);
+			position = start + length;
+		}
+		return position;
+	}
+
+	public Function parse(String str) throws Exception
+	{
+		return parse(str, "x");
+	}
+
+	/**
+	 * @return The function str parsed with vars, from the store if it is
+	 * there.
+	 * @throws Exception if str cannot be parsed.
+	 */
+	public Function parse(String str, String...vars) throws Exception
+	{
+		String key = key("parse", str, vars);
+		Function f = get(key);
+		if (f == null)
+			f = put(key, interpreter.parse(str, vars), vars);
+		return f;
+	}
+
+	/**
+	 * @return The simplified function str parsed with vars, from the store if
+	 * it is there.
+	 * @throws Exception if str cannot be parsed.
+	 */
+	public Function simplify(String str, String...vars) throws Exception
+	{
+		String key = key("simplify", str, vars);
+		Function f = get(key);
+		if (f == null)
+			f = put(key, parse(str, vars).simplify(), vars);
+		return f;
+	}
+
+	/**
+	 * @param var - The variable to differentiate by.
+	 * @return The simplified derivative of the simplified function str
+	 * parsed with vars, from the store if it is there.
+	 * @throws Exception if str cannot be parsed.
+	 */
+	public Function derivative(String str, String var, String...vars) throws Exception
+	{
+		String key = key("derivative " + var, str, vars);
+		Function f = get(key);
+		if (f == null)
+			f = put(key, simplify(str, vars).differentiate(new Variable(var)).simplify(), vars);
+		return f;
+	}
+
+	private String key(String kind, String str, String[] vars)
+	{
+		String[] names = vars.clone();
+		Arrays.sort(names);
+
+		// names are prefixed by their lengths so no two sets share a key
+		StringBuilder key = new StringBuilder(kind).append(';');
+		for (String name : names)
+			key.append(name.length()).append(':').append(name);
+		return key.append(';').append(str).toString();
+	}
+
+	/**
+	 * @return The function stored under key, reading it from the file if it
+	 * has not been read yet, or null if there is none.
+	 */
+	private synchronized Function get(String key)
+	{
+		Function f = loaded.get(key);
+		if (f == null)
+		{
+			Integer position = index.get(key);
+			if (position != null)
+			{
+				ByteBuffer buffer = mapped.duplicate();
+				buffer.position(position);
+				try {
+					f = CompactFunction.read(buffer).toFunction();
+					loaded.put(key, f);
+				} catch (Exception e) {
+					// a record that passed its checksum but cannot be read is computed again
+					index.remove(key);
+				}
+			}
+		}
+		if (f == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return f;
+	}
+
+	/**
+	 * Stores f under key, unless another thread has stored a function under
+	 * it first.
+	 * @return The function stored under key.
+	 */
+	private synchronized Function put(String key, Function f, String[] vars) throws IOException
+	{
+		Function existing = loaded.get(key);
+		if (existing != null)
+			return existing;
+		loaded.put(key, f);
+
+		CompactFunction compact;
+		try {
+			compact = new CompactFunction(f, vars);
+		} catch (Exception e) {
+			return f;
+		}
+		byte[] name = key.getBytes(StandardCharsets.UTF_8);
+		int length = 4 + name.length + compact.getSerializedSize();
+		ByteBuffer record = ByteBuffer.allocate(8 + length);
+		record.putInt(length).putInt(0).putInt(name.length).put(name);
+		compact.write(record);
+
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 8, length);
+		record.putInt(4, (int) crc.getValue());
+		record.flip();
+		while (record.hasRemaining())
+			end += channel.write(record, end);
+		return f;
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+
+	/**
+	 * @return The number of functions in the file or in memory.
+	 */
+	public synchronized int size()
+	{
+		int size = index.size();
+		for (String key : loaded.keySet())
+			if (!index.containsKey(key))
+				size++;
+		return size;
+	}
+
+	/**
+	 * Forces the functions stored so far out to the disk.
+	 */
+	public synchronized void flush() throws IOException
+	{
+		channel.force(false);
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		channel.force(false);
+		file.close();
+	}
+}
@@ -0,0 +1,149 @@
+package cope.interpreter;
+
+import java.util.ArrayList;
+
+import cope.interpreter.instrumentation.ParseEvent;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Parses successive versions of a string as it is edited, such as a formula
+ * being typed, doing only the work the edit makes necessary. The string is
+ * compared with the last one parsed to find the span that has changed. The
+ * tokens before and after the span are kept, and only the span itself is
+ * read again, until the new tokens line up with the old ones after it.
+ *
+ * Every bracketed expression whose tokens lie wholly outside the span keeps
+ * the tree it was parsed into last time, so the parser only has to walk the
+ * brackets enclosing the edit. The unchanged subtrees of the result are the
+ * same objects as in the last tree, so anything remembered about them, such
+ * as their values by an IncrementalEvaluator, can be reused.
+ *
+ * A parser holds the state of the last string, so must not be shared
+ * between threads. Interpreter.incremental creates one.
+ */
+public class IncrementalParser
+{
+	private final Lexer lexer;
+	private final int lookahead;
+
+	private String source = null;
+	private ArrayList<Token> tokens;
+	private Function[] groups;
+	private int[] closes;
+
+	/** The number of tokens at the start of the last token stream that are kept. */
+	private int kept;
+	/** The index in the last token stream of the first token kept after the edit. */
+	private int first;
+	/** The amount the index of each token kept after the edit has moved by. */
+	private int shift;
+
+	IncrementalParser(Lexer lexer)
+	{
+		this.lexer = lexer;
+		this.lookahead = lexer.getLookahead();
+	}
+
+	/**
+	 * Parses str, reusing what it has in common with the last string parsed.
+	 * @param str - The string to be parsed.
+	 * @return The root of the function tree.
+	 * @throws Exception if str cannot be parsed.
+	 */
+	public Function parse(String str) throws Exception
+	{
+		ParseEvent event = new ParseEvent();
+		event.begin();
+		if (source == null)
+			tokens = lexer.tokenize(str);
+		else
+			tokens = retokenize(str);
+		source = str;
+
+		Function[] oldGroups = groups;
+		int[] oldCloses = closes;
+		groups = new Function[tokens.size()];
+		closes = new int[tokens.size()];
+		if (oldGroups != null)
+			keepGroups(oldGroups, oldCloses);
+
+		Function f = new Parser(tokens, str, groups, closes).parse();
+		event.record(str, f);
+		return f;
+	}
+
+	/**
+	 * @return The tokens of str, keeping those of the last string that are
+	 * outside the edit.
+	 * @throws Exception if the edited part of str cannot be tokenized, in
+	 * which case the state of the last string is left unchanged.
+	 */
+	private ArrayList<Token> retokenize(String str) throws Exception
+	{
+		int oldLength = source.length(), length = str.length();
+		int max = Math.min(oldLength, length);
+		int prefix = 0;
+		while (prefix < max && source.charAt(prefix) == str.charAt(prefix))
+			prefix++;
+		int suffix = 0;
+		while (suffix < max - prefix && source.charAt(oldLength - 1 - suffix) == str.charAt(length - 1 - suffix))
+			suffix++;
+		int delta = length - oldLength;
+		int last = tokens.size() - 1;
+
+		// a token before the edit is kept if reading it never looked at the edit
+		kept = 0;
+		while (kept < last && tokens.get(kept).getEnd() + lookahead <= prefix)
+			kept++;
+		first = kept;
+		while (first < last && tokens.get(first).getStart() < oldLength - suffix)
+			first++;
+
+		ArrayList<Token> newTokens = new ArrayList<Token>(tokens.size() + 8);
+		newTokens.addAll(tokens.subList(0, kept));
+		int i = kept == 0 ? 0 : tokens.get(kept - 1).getEnd();
+		i = lexer.tokenize(str, i, first < last ? tokens.get(first).getStart() + delta : length, newTokens);
+		// read on until a token starts where one of the old tokens after the edit did
+		while (i < length)
+		{
+			while (first < last && tokens.get(first).getStart() + delta < i)
+				first++;
+			if (first == last)
+				i = lexer.tokenize(str, i, length, newTokens);
+			else if (tokens.get(first).getStart() + delta == i)
+				break;
+			else
+				i = lexer.tokenize(str, i, tokens.get(first).getStart() + delta, newTokens);
+		}
+		if (i == length)
+			first = last;
+
+		shift = newTokens.size() - first;
+		for (int j = first; j < last; j++)
+		{
+			Token t = tokens.get(j);
+			t.move(delta);
+			newTokens.add(t);
+		}
+		newTokens.add(new Token(Token.END, length, length));
+		return newTokens;
+	}
+
+	/**
+	 * Copies the trees of the brackets of the last token stream that were
+	 * kept whole into groups, at their new positions.
+	 */
+	private void keepGroups(Function[] oldGroups, int[] oldCloses)
+	{
+		for (int k = 0; k < kept; k++)
+			if (oldGroups[k] != null && oldCloses[k] < kept) {
+				groups[k] = oldGroups[k];
+				closes[k] = oldCloses[k];
+			}
+		for (int k = first; k < oldGroups.length; k++)
+			if (oldGroups[k] != null) {
+				groups[k + shift] = oldGroups[k];
+				closes[k + shift] = oldCloses[k] + shift;
+			}
+	}
+}
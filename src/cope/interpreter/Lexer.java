@@ -0,0 +1,203 @@
+package cope.interpreter;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Splits a function string into Tokens in a single pass over its characters.
+ * Whitespace is skipped, so "sin x" and "sinx" produce the same stream.
+ * Where names overlap the longest match is taken, so "sinh" is never read
+ * as "sin" followed by "h". Unary operations are tried before variables,
+ * in keeping with the order the Interpreter has always resolved them.
+ * Numbers may have an exponent, as in "1.0E-5", which is how Constant
+ * writes very small and very large values.
+ */
+public class Lexer
+{
+	private BinaryInstruction[] binops;
+	private UnaryInstruction[] unops;
+	private String[] vars;
+
+	public Lexer(BinaryInstruction[] binops, UnaryInstruction[] unops, Collection<Variable> vars)
+	{
+		this.binops = binops;
+		this.unops = unops;
+		this.vars = new String[vars.size()];
+		int i = 0;
+		for (Variable v : vars)
+			this.vars[i++] = v.getName();
+	}
+
+	/**
+	 * Reads str into a list of tokens terminated by a Token.END token.
+	 * @param str - String to be tokenized.
+	 * @return The tokens of str in order.
+	 * @throws Exception if some part of str is not a number, bracket, or known
+	 * operation or variable.
+	 */
+	public ArrayList<Token> tokenize(String str) throws Exception
+	{
+		ArrayList<Token> tokens = new ArrayList<Token>();
+		int len = tokenize(str, 0, str.length(), tokens);
+		tokens.add(new Token(Token.END, len, len));
+		return tokens;
+	}
+
+	/**
+	 * Reads the tokens of str from index start onwards, up to the first that
+	 * starts at or after index stop.
+	 * @param tokens - The list the tokens are added to.
+	 * @return The index of the start of the first token not read, or the
+	 * length of str if every token up to the end has been read.
+	 * @throws Exception if some part of str is not a number, bracket, or known
+	 * operation or variable.
+	 */
+	int tokenize(String str, int start, int stop, ArrayList<Token> tokens) throws Exception
+	{
+		int len = str.length();
+		int i = start;
+		while (i < len)
+		{
+			char c = str.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+				continue;
+			}
+			if (i >= stop)
+				return i;
+			if (c == '(') {
+				tokens.add(new Token(Token.OPEN, i, i+1));
+				i++;
+				continue;
+			}
+			if (c == ')') {
+				tokens.add(new Token(Token.CLOSE, i, i+1));
+				i++;
+				continue;
+			}
+			if (isNumeric(c)) {
+				int j = i;
+				while (j < len && isNumeric(str.charAt(j)))
+					j++;
+				j = matchExponent(str, j);
+				tokens.add(new Token(parseConstant(str, i, j), i, j));
+				i = j;
+				continue;
+			}
+
+			Token t = matchBinop(str, i);
+			if (t == null)
+				t = matchUnop(str, i);
+			if (t == null)
+				t = matchVariable(str, i);
+			if (t == null)
+				throw new Exception("Cannot parse \"" + str + "\" at index " + i);
+			tokens.add(t);
+			i = t.getEnd();
+		}
+		return len;
+	}
+
+	/**
+	 * @return The number of characters from its start, or from its end, that
+	 * reading a token may look at: the length of the longest name of an
+	 * operation or variable, and at least 3 for the exponent that may follow
+	 * a number, as in "1e-5".
+	 */
+	int getLookahead()
+	{
+		int lookahead = 3;
+		for (BinaryInstruction op : binops)
+			lookahead = Math.max(lookahead, op.getString().length());
+		for (UnaryInstruction op : unops)
+			lookahead = Math.max(lookahead, op.getString().length());
+		for (String v : vars)
+			lookahead = Math.max(lookahead, v.length());
+		return lookahead;
+	}
+
+	private boolean isNumeric(char c)
+	{
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+
+	/**
+	 * @param i - The index just after the digits of a number.
+	 * @return The index just after the exponent of the number, such as the
+	 * "e-5" of "1e-5", or i if it has none.
+	 */
+	private int matchExponent(String str, int i)
+	{
+		int len = str.length();
+		if (i >= len || (str.charAt(i) != 'e' && str.charAt(i) != 'E'))
+			return i;
+		int j = i + 1;
+		if (j < len && (str.charAt(j) == '+' || str.charAt(j) == '-'))
+			j++;
+		if (j >= len || !isDigit(str.charAt(j)))
+			return i;
+		while (j < len && isDigit(str.charAt(j)))
+			j++;
+		return j;
+	}
+
+	private boolean isDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	private double parseConstant(String str, int start, int end) throws Exception
+	{
+		try {
+			return Double.parseDouble(str.substring(start, end));
+		}
+		catch (NumberFormatException e) {
+			throw new Exception("Cannot parse \"" + str.substring(start, end) + "\" as a constant.");
+		}
+	}
+
+	private Token matchBinop(String str, int i)
+	{
+		for (BinaryInstruction op : binops)
+		{
+			String opstr = op.getString();
+			if (str.startsWith(opstr, i))
+				return new Token(op, i, i + opstr.length());
+		}
+		return null;
+	}
+
+	private Token matchUnop(String str, int i)
+	{
+		UnaryInstruction best = null;
+		int bestLength = 0;
+		for (UnaryInstruction op : unops)
+		{
+			String opstr = op.getString();
+			if (opstr.length() > bestLength && str.startsWith(opstr, i)) {
+				best = op;
+				bestLength = opstr.length();
+			}
+		}
+		if (best == null)
+			return null;
+		return new Token(best, i, i + bestLength);
+	}
+
+	private Token matchVariable(String str, int i)
+	{
+		String best = null;
+		int bestLength = 0;
+		for (String v : vars)
+			if (v.length() > bestLength && str.startsWith(v, i)) {
+				best = v;
+				bestLength = v.length();
+			}
+		if (best == null)
+			return null;
+		return new Token(best, i, i + best.length());
+	}
+}
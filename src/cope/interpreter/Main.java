@@ -26,17 +26,25 @@ public class Main
 			factors = h.getCommonFactors();
 			System.out.println("Common factors = " + factors);
 			System.out.println(h.simplify());
+			System.out.println();
+
+			System.out.println("Demonstrating that factoring preserves values, at x = 0.5:");
+			for (String str : new String[] { "ln(x+x*x)", "ln(4*x-x^3)", "x^2+3*x" })
+			{
+				h = interpreter.parse(str);
+				Function simplified = h.simplify();
+				System.out.println(h + " = " + h.evaluateDouble(new Variable("x", 0.5)) + ", "
+						+ simplified + " = " + simplified.evaluateDouble(new Variable("x", 0.5)));
+			}
 			System.out.println("\n");
-			
-			Function f = interpreter.parse("(4*x^y - 2*sinh(y))*(9*x*y + cos(ln(x))^2)", "x", "y");//sin(pi*x)^2");
-			f.setName("f");
+
+			Function f = interpreter.parse("(4*x^y - 2*sinh(y))*(9*x*y + cos(ln(x))^2)", "x", "y").withName("f");//sin(pi*x)^2");
 			System.out.println("Let " + f);
 			System.out.println(f.toString(0.25f));
 			System.out.println(f.differentiate().simplify());
 			System.out.println();
 
-			Function g = interpreter.parse("ln(x*y) + x^4 + y", "x", "y");
-			g.setName("g");
+			Function g = interpreter.parse("ln(x*y) + x^4 + y", "x", "y").withName("g");
 			System.out.println("\nLet " + g + "\n");
 			Function diff = g.differentiate();
 			System.out.println("Differentiating g with respect to x, without simplification:");
@@ -44,7 +52,15 @@ public class Main
 			System.out.println();
 			System.out.println("Simplifying g':");
 			System.out.println(diff.simplify());
-		} 
+			System.out.println();
+
+			Function k = interpreter.parse("x*0.00001 + 2.5e12/x^-2 - (-3)");
+			System.out.println("Demonstrating that printed functions parse again:");
+			System.out.println(k);
+			Function reparsed = interpreter.parse(k.getString());
+			System.out.println(reparsed);
+			System.out.println("Round trip preserves the tree: " + reparsed.equals(k));
+		}
 		catch (Exception e1) {
 			e1.printStackTrace();
 			System.exit(1);
@@ -0,0 +1,165 @@
+package cope.interpreter;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * A bounded cache of parsed functions in front of an Interpreter, keyed by
+ * the source string and the set of variables it was parsed with. Repeated
+ * requests for the same function return the same tree without parsing it,
+ * and, if the cache was asked to, without simplifying it.
+ *
+ * The cache holds at most a given number of functions and a given total
+ * weight, where the weight of a function is the number of nodes in its tree.
+ * When either bound is exceeded the least recently used functions are
+ * evicted. The cache is safe to use from many threads; parsing happens
+ * outside its lock, so two threads missing on the same key at once will both
+ * parse it, and the first result is kept.
+ *
+ * Trees returned by the cache are shared between all callers, which is safe
+ * as function trees are immutable.
+ */
+public class ParseCache
+{
+	private Interpreter interpreter;
+	private int maxEntries;
+	private long maxWeight;
+	private boolean simplify;
+
+	private LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long weight = 0;
+
+	private AtomicLong hits = new AtomicLong();
+	private AtomicLong misses = new AtomicLong();
+	private AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param interpreter - The interpreter used to parse functions on a miss.
+	 * @param maxEntries - The most functions the cache will hold.
+	 * @param maxWeight - The most nodes the cached trees may have in total.
+	 * @param simplify - Whether functions are simplified before being cached.
+	 */
+	public ParseCache(Interpreter interpreter, int maxEntries, long maxWeight, boolean simplify)
+	{
+		this.interpreter = interpreter;
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+		this.simplify = simplify;
+	}
+
+	public Function parse(String str) throws Exception
+	{
+		return parse(str, "x");
+	}
+
+	public Function parse(String str, String...vars) throws Exception
+	{
+		Set<Variable> vs = new HashSet<Variable>();
+		for (String v : vars)
+			vs.add(new Variable(v));
+		return parse(str, vs);
+	}
+
+	/**
+	 * Returns the cached function for str and vars, parsing it with the
+	 * interpreter if it is not in the cache.
+	 * @throws Exception if str cannot be parsed.
+	 */
+	public Function parse(String str, Set<Variable> vars) throws Exception
+	{
+		String key = key(str, vars);
+		synchronized (this)
+		{
+			Entry e = entries.get(key);
+			if (e != null) {
+				hits.incrementAndGet();
+				return e.function;
+			}
+		}
+		misses.incrementAndGet();
+
+		Function f = interpreter.parse(str, vars);
+		if (simplify)
+			f = f.simplify();
+		Entry e = new Entry(f, countNodes(f));
+
+		synchronized (this)
+		{
+			Entry existing = entries.get(key);
+			if (existing != null)
+				return existing.function;
+			if (e.weight > maxWeight)
+				return f;
+			entries.put(key, e);
+			weight += e.weight;
+			evict();
+		}
+		return f;
+	}
+
+	private void evict()
+	{
+		Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext())
+		{
+			weight -= iterator.next().getValue().weight;
+			iterator.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	private String key(String str, Set<Variable> vars)
+	{
+		String[] names = new String[vars.size()];
+		int i = 0;
+		for (Variable v : vars)
+			names[i++] = v.getName();
+		Arrays.sort(names);
+
+		// names are prefixed by their lengths so no two sets share a key
+		StringBuilder key = new StringBuilder();
+		for (String name : names)
+			key.append(name.length()).append(':').append(name);
+		return key.append(';').append(str).toString();
+	}
+
+	private long countNodes(Function f)
+	{
+		long count = 1;
+		for (int i = 0; i < f.getChildCount(); i++)
+			count += countNodes(f.getChild(i));
+		return count;
+	}
+
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+	public long getEvictions() { return evictions.get(); }
+
+	public synchronized int size() { return entries.size(); }
+	public synchronized long getWeight() { return weight; }
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		weight = 0;
+	}
+
+	private static class Entry
+	{
+		private Function function;
+		private long weight;
+
+		Entry(Function function, long weight)
+		{
+			this.function = function;
+			this.weight = weight;
+		}
+	}
+}
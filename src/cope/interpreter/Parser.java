@@ -0,0 +1,150 @@
+package cope.interpreter;
+
+import java.util.ArrayList;
+
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.FunctionalVariable;
+import cope.interpreter.nodes.UnaryFunction;
+import cope.interpreter.patterns.BinaryInstruction;
+
+/**
+ * Operator-precedence (Pratt) parser that builds a function tree from the
+ * tokens produced by a Lexer, in time linear in the number of tokens.
+ *
+ * Binary operations are ordered by BinaryInstruction.getPriority(), where a
+ * lower priority binds more tightly, and operations of equal priority group
+ * to the right; so "a-b-c" is read as a-(b-c) and "a*b^c+d" as (a*(b^c))+d.
+ * Unary operations bind more tightly than any binary operation and apply to
+ * the single bracket, number, variable or unary operation that follows them.
+ * A "-" where an operand is expected negates the operand that follows it,
+ * in the same way: a number becomes a negative constant, so "x^-1" is read
+ * as x^(-1) and "-2^x" as (-2)^x, and anything else is subtracted from 0.
+ *
+ * A Parser holds the position it has reached in the stream, so a new one
+ * should be made for each string that is parsed.
+ *
+ * A bracketed expression always parses to the same tree wherever it
+ * appears, so a parser may be given the trees of brackets it has already
+ * parsed, indexed by the position of their open bracket, and skip over them;
+ * the trees of the brackets it parses itself are added to the same arrays.
+ * This is how an IncrementalParser reparses only what an edit has changed.
+ */
+public class Parser
+{
+	private ArrayList<Token> tokens;
+	private String source;
+	private int position = 0;
+	private Function[] groups;
+	private int[] closes;
+
+	public Parser(ArrayList<Token> tokens, String source)
+	{
+		this.tokens = tokens;
+		this.source = source;
+	}
+
+	/**
+	 * @param groups - The trees of brackets already parsed, by the index of
+	 * their open bracket token, or null for brackets yet to be parsed.
+	 * @param closes - The index of the close bracket token of each bracket in
+	 * groups.
+	 */
+	Parser(ArrayList<Token> tokens, String source, Function[] groups, int[] closes)
+	{
+		this(tokens, source);
+		this.groups = groups;
+		this.closes = closes;
+	}
+
+	/**
+	 * Parses the whole token stream as a single function.
+	 * @return The root of the function tree.
+	 * @throws Exception if the tokens do not form a complete function.
+	 */
+	public Function parse() throws Exception
+	{
+		Function f = parseExpression(Integer.MAX_VALUE);
+		if (peek().getType() != Token.END)
+			throw unexpected(peek());
+		return f;
+	}
+
+	/**
+	 * Parses a sequence of operands joined by binary operations with a
+	 * priority no greater than limit.
+	 * @param limit - The highest priority of operation that may be consumed.
+	 * @return The function tree describing the sequence.
+	 * @throws Exception if an operand is missing or malformed.
+	 */
+	private Function parseExpression(int limit) throws Exception
+	{
+		Function left = parseOperand();
+		while (peek().getType() == Token.BINARY)
+		{
+			BinaryInstruction op = peek().getBinaryInstruction();
+			int priority = op.getPriority();
+			if (priority > limit)
+				break;
+			position++;
+			Function right = parseExpression(priority);
+			left = new BinaryFunction(left, right, op);
+		}
+		return left;
+	}
+
+	private Function parseOperand() throws Exception
+	{
+		Token t = next();
+		switch (t.getType())
+		{
+		case Token.NUMBER:
+			return new Constant(t.getValue());
+		case Token.VARIABLE:
+			return new FunctionalVariable(t.getName());
+		case Token.UNARY:
+			return new UnaryFunction(parseOperand(), t.getUnaryInstruction());
+		case Token.BINARY:
+			BinaryInstruction op = t.getBinaryInstruction();
+			if (!op.getString().equals("-"))
+				throw unexpected(t);
+			if (peek().getType() == Token.NUMBER)
+				return new Constant(-next().getValue());
+			return new BinaryFunction(new Constant(0), parseOperand(), op);
+		case Token.OPEN:
+			int open = position - 1;
+			if (groups != null && groups[open] != null) {
+				position = closes[open] + 1;
+				return groups[open];
+			}
+			Function f = parseExpression(Integer.MAX_VALUE);
+			Token close = next();
+			if (close.getType() != Token.CLOSE)
+				throw unexpected(close);
+			if (groups != null) {
+				groups[open] = f;
+				closes[open] = position - 1;
+			}
+			return f;
+		default:
+			throw unexpected(t);
+		}
+	}
+
+	private Token peek() { return tokens.get(position); }
+
+	private Token next()
+	{
+		Token t = tokens.get(position);
+		if (t.getType() != Token.END)
+			position++;
+		return t;
+	}
+
+	private Exception unexpected(Token t)
+	{
+		return new Exception("Cannot parse \"" + source + "\": unexpected "
+				+ t + " at index " + t.getStart());
+	}
+}
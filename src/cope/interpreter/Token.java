@@ -0,0 +1,90 @@
+package cope.interpreter;
+
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * A single lexical element of a function string, as produced by the
+ * Lexer. Tokens remember the span of the source they were read from
+ * so that errors can point at the offending part of the input.
+ */
+public class Token
+{
+	public static final int NUMBER = 0;
+	public static final int VARIABLE = 1;
+	public static final int UNARY = 2;
+	public static final int BINARY = 3;
+	public static final int OPEN = 4;
+	public static final int CLOSE = 5;
+	public static final int END = 6;
+
+	private int type;
+	private int start, end;
+	private double value;
+	private String name;
+	private BinaryInstruction binop;
+	private UnaryInstruction unop;
+
+	public Token(int type, int start, int end)
+	{
+		this.type = type;
+		this.start = start;
+		this.end = end;
+	}
+
+	public Token(double value, int start, int end)
+	{
+		this(NUMBER, start, end);
+		this.value = value;
+	}
+
+	public Token(String name, int start, int end)
+	{
+		this(VARIABLE, start, end);
+		this.name = name;
+	}
+
+	public Token(BinaryInstruction binop, int start, int end)
+	{
+		this(BINARY, start, end);
+		this.binop = binop;
+	}
+
+	public Token(UnaryInstruction unop, int start, int end)
+	{
+		this(UNARY, start, end);
+		this.unop = unop;
+	}
+
+	public int getType() { return type; }
+	public int getStart() { return start; }
+	public int getEnd() { return end; }
+	public double getValue() { return value; }
+	public String getName() { return name; }
+	public BinaryInstruction getBinaryInstruction() { return binop; }
+	public UnaryInstruction getUnaryInstruction() { return unop; }
+
+	/**
+	 * Moves the span of this token by delta characters, when text has been
+	 * inserted or removed before it.
+	 */
+	void move(int delta)
+	{
+		start += delta;
+		end += delta;
+	}
+
+	public String toString()
+	{
+		switch (type)
+		{
+		case NUMBER: 	return Double.toString(value);
+		case VARIABLE: 	return name;
+		case UNARY: 	return unop.getString();
+		case BINARY: 	return binop.getString();
+		case OPEN: 		return "(";
+		case CLOSE: 	return ")";
+		default: 		return "end of input";
+		}
+	}
+}
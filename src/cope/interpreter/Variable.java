@@ -3,7 +3,8 @@ package cope.interpreter;
 public class Variable 
 {
 	private String name;
-	private float value = 0;
+	private double value = 0;
+	private boolean constant = false;
 	
 	public Variable(String name) 
 	{
@@ -11,16 +12,55 @@ public class Variable
 	}
 	
 	public Variable(String name, float value)
+	{
+		this(name, (double) value);
+	}
+	
+	public Variable(String name, double value)
 	{
 		this.name = name; 
 		this.value = value;
 	}
 	
+	/**
+	 * Creates a variable whose name and value can never be changed, such
+	 * as the standard variables Function.PI and Function.E.
+	 */
+	public static Variable constant(String name, double value)
+	{
+		Variable v = new Variable(name, value);
+		v.constant = true;
+		return v;
+	}
+	
 	public String getName() { return this.name; }
-	public float get() { return this.value; }
+	/**
+	 * @return The value rounded to a float, for callers of the float API;
+	 * see getDouble.
+	 */
+	public float get() { return (float) this.value; }
+	public double getDouble() { return this.value; }
+	public boolean isConstant() { return constant; }
+	
+	public void setName(String name) 
+	{ 
+		checkMutable();
+		this.name = name; 
+	}
 	
-	public void setName(String name) { this.name = name; }
-	public void set(float value) { this.value = value; }
+	public void set(float value) { set((double) value); }
+	
+	public void set(double value) 
+	{ 
+		checkMutable();
+		this.value = value; 
+	}
+	
+	private void checkMutable()
+	{
+		if (constant)
+			throw new UnsupportedOperationException("The variable " + name + " is constant.");
+	}
 	
 	public String toString() { return name; }
 	
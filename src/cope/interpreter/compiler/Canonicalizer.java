@@ -0,0 +1,223 @@
+package cope.interpreter.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.FunctionalVariable;
+import cope.interpreter.nodes.UnaryFunction;
+import cope.interpreter.patterns.BinaryInstruction;
+
+/**
+ * Rewrites a function into a cheaper canonical tree before it is evaluated,
+ * in a single bottom-up pass:
+ *
+ * Every subtree without variables is folded into one constant, including the
+ * standard variables pi and e and unary functions of constants such as ln(2).
+ *
+ * Chains of additions and of multiplications are flattened into lists of
+ * operands, their constants combined into one, and the rest sorted into a
+ * fixed order, so that equal sums and products written in different orders
+ * become equal trees. The chain is then rebuilt as a left-leaning binary
+ * tree with the constant first, dropping it if it is 0 in a sum or 1 in a
+ * product. Likewise a - 0 and a/1 become a. A product with a factor of 0
+ * is kept, as its other factors may be infinite or NaN.
+ *
+ * Powers with a small integer exponent, such as x^2 or x^-3, become
+ * multiplications by repeated squaring. The repeated factors of the result
+ * are shared nodes rather than copies.
+ *
+ * Constants are folded with the instructions' own evaluate methods, so the
+ * result evaluates to the same values as the original up to the rounding of
+ * reordered sums and products.
+ */
+public class Canonicalizer
+{
+	/** The largest exponent, in magnitude, that is expanded into multiplications. */
+	public static final int MAX_POWER = 16;
+
+	/**
+	 * @param f - The function to be rewritten, which is left unchanged.
+	 * @param variables - Names of variables of f that are never folded, even
+	 * if they are the names of the standard variables pi and e.
+	 * @return The canonical form of f.
+	 */
+	public Function canonicalize(Function f, String...variables)
+	{
+		return rewrite(f, Arrays.asList(variables), new IdentityHashMap<Function, Function>());
+	}
+
+	private Function rewrite(Function f, List<String> variables, IdentityHashMap<Function, Function> done)
+	{
+		Function result = done.get(f);
+		if (result != null)
+			return result;
+
+		if (f instanceof FunctionalVariable)
+			result = rewriteVariable((FunctionalVariable) f, variables);
+		else if (f instanceof UnaryFunction)
+		{
+			UnaryFunction u = (UnaryFunction) f;
+			Function c = rewrite(u.getChild(), variables, done);
+			if (c instanceof Constant)
+				result = new Constant(u.getInstruction().evaluateDouble(((Constant) c).getDoubleValue()));
+			else
+				result = c == u.getChild() ? f : f.withChildren(c);
+		}
+		else if (f instanceof BinaryFunction)
+		{
+			BinaryFunction b = (BinaryFunction) f;
+			Function l = rewrite(b.getLeftChild(), variables, done);
+			Function r = rewrite(b.getRightChild(), variables, done);
+			BinaryInstruction i = b.getInstruction();
+
+			if (l instanceof Constant && r instanceof Constant)
+				result = new Constant(i.evaluateDouble(((Constant) l).getDoubleValue(), ((Constant) r).getDoubleValue()));
+			else if (i.equals(BinaryFunction.addition) || i.equals(BinaryFunction.multiplication))
+				result = rewriteChain(l, r, i);
+			else if (i.equals(BinaryFunction.exponentiation) && isSmallInteger(r))
+				result = expandPower(l, (int) ((Constant) r).getDoubleValue());
+			else if (i.equals(BinaryFunction.subtraction) && isConstant(r, 0)
+					|| i.equals(BinaryFunction.division) && isConstant(r, 1))
+				result = l;
+			else
+				result = l == b.getLeftChild() && r == b.getRightChild() ? f : f.withChildren(l, r);
+		}
+		else result = f;
+
+		done.put(f, result);
+		return result;
+	}
+
+	private Function rewriteVariable(FunctionalVariable v, List<String> variables)
+	{
+		String name = v.getName();
+		if (variables.contains(name))
+			return v;
+		if (name.equals(Function.PI.getName()))
+			return new Constant(Function.PI.getDouble());
+		if (name.equals(Function.E.getName()))
+			return new Constant(Function.E.getDouble());
+		return v;
+	}
+
+	/**
+	 * Flattens l i r, where i is addition or multiplication and l and r are
+	 * already canonical, and rebuilds it in canonical order.
+	 */
+	private Function rewriteChain(Function l, Function r, BinaryInstruction i)
+	{
+		ArrayList<Function> operands = new ArrayList<Function>();
+		flatten(l, i, operands);
+		flatten(r, i, operands);
+
+		boolean sum = i.equals(BinaryFunction.addition);
+		double identity = sum ? 0 : 1;
+		double constant = identity;
+		ArrayList<Function> terms = new ArrayList<Function>();
+		for (Function operand : operands)
+		{
+			if (operand instanceof Constant)
+				constant = i.evaluateDouble(constant, ((Constant) operand).getDoubleValue());
+			else
+				terms.add(operand);
+		}
+		Function[] sorted = terms.toArray(new Function[terms.size()]);
+		Arrays.sort(sorted, new Order());
+
+		Function chain = null;
+		if (constant != identity || sorted.length == 0)
+			chain = new Constant(constant);
+		for (Function term : sorted)
+			chain = chain == null ? term : new BinaryFunction(chain, term, i);
+		return chain;
+	}
+
+	private void flatten(Function f, BinaryInstruction i, ArrayList<Function> operands)
+	{
+		if (f instanceof BinaryFunction && ((BinaryFunction) f).getInstruction().equals(i))
+		{
+			flatten(f.getChild(0), i, operands);
+			flatten(f.getChild(1), i, operands);
+		}
+		else operands.add(f);
+	}
+
+	private boolean isConstant(Function f, double value)
+	{
+		return f instanceof Constant && ((Constant) f).getDoubleValue() == value;
+	}
+
+	private boolean isSmallInteger(Function f)
+	{
+		if (!(f instanceof Constant))
+			return false;
+		double value = ((Constant) f).getDoubleValue();
+		return value == Math.rint(value) && Math.abs(value) <= MAX_POWER;
+	}
+
+	/**
+	 * @return base^n as a product of shared factors, or its reciprocal if n
+	 * is negative.
+	 */
+	private Function expandPower(Function base, int n)
+	{
+		if (n == 0)
+			return new Constant(1);
+
+		Function result = null;
+		Function square = base;
+		for (int m = Math.abs(n); m > 0; m >>= 1)
+		{
+			if ((m & 1) == 1)
+				result = result == null ? square : new BinaryFunction(result, square, BinaryFunction.multiplication);
+			if (m > 1)
+				square = new BinaryFunction(square, square, BinaryFunction.multiplication);
+		}
+		if (n < 0)
+			return new BinaryFunction(new Constant(1), result, BinaryFunction.division);
+		return result;
+	}
+
+	/**
+	 * Orders the terms of a chain by kind of node, then by how they are
+	 * written. Each term's string is computed once, when it is first compared.
+	 */
+	private static class Order implements Comparator<Function>
+	{
+		private IdentityHashMap<Function, String> strings = new IdentityHashMap<Function, String>();
+
+		@Override
+		public int compare(Function f0, Function f1)
+		{
+			int rank = rank(f0) - rank(f1);
+			if (rank != 0)
+				return rank;
+			return string(f0).compareTo(string(f1));
+		}
+
+		private int rank(Function f)
+		{
+			if (f instanceof FunctionalVariable)
+				return 0;
+			if (f instanceof UnaryFunction)
+				return 1;
+			return 2;
+		}
+
+		private String string(Function f)
+		{
+			String str = strings.get(f);
+			if (str == null) {
+				str = f.getString();
+				strings.put(f, str);
+			}
+			return str;
+		}
+	}
+}
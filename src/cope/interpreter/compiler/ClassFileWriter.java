@@ -0,0 +1,203 @@
+package cope.interpreter.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * A minimal writer for JVM class files, supporting only what the
+ * FunctionCompiler needs: a final class with a set of interfaces and methods
+ * whose code contains no branches, exception handlers or local variable
+ * tables. Methods without branches need no stack map frames, so the
+ * generated classes verify without one.
+ */
+public class ClassFileWriter
+{
+	public static final int ACC_PUBLIC = 0x0001;
+	public static final int ACC_FINAL = 0x0010;
+	public static final int ACC_SUPER = 0x0020;
+
+	private static final int MAGIC = 0xCAFEBABE;
+	private static final int MAJOR_VERSION = 52;
+
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+	private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+	private DataOutputStream pool = new DataOutputStream(poolBytes);
+	private HashMap<String, Integer> poolIndices = new HashMap<String, Integer>();
+	private int poolCount = 1;
+
+	private ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+	private DataOutputStream methods = new DataOutputStream(methodBytes);
+	private int methodCount = 0;
+
+	private int thisClass, superClass;
+	private int[] interfaces;
+
+	/**
+	 * @param className - Internal name of the class, e.g. "a/b/C".
+	 * @param superName - Internal name of the super class.
+	 * @param interfaceNames - Internal names of the implemented interfaces.
+	 */
+	public ClassFileWriter(String className, String superName, String...interfaceNames)
+	{
+		thisClass = classRef(className);
+		superClass = classRef(superName);
+		interfaces = new int[interfaceNames.length];
+		for (int i = 0; i < interfaceNames.length; i++)
+			interfaces[i] = classRef(interfaceNames[i]);
+	}
+
+	public int utf8(String str)
+	{
+		String key = "U" + str;
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(CONSTANT_UTF8);
+			pool.writeUTF(str);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return register(key, 1);
+	}
+
+	public int classRef(String internalName)
+	{
+		String key = "C" + internalName;
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		int name = utf8(internalName);
+		writeEntry(CONSTANT_CLASS, name);
+		return register(key, 1);
+	}
+
+	public int methodRef(String owner, String name, String descriptor)
+	{
+		String key = "M" + owner + "." + name + descriptor;
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		int ownerIndex = classRef(owner);
+		int nameAndType = nameAndType(name, descriptor);
+		writeEntry(CONSTANT_METHODREF, ownerIndex, nameAndType);
+		return register(key, 1);
+	}
+
+	public int doubleConstant(double value)
+	{
+		String key = "D" + Double.doubleToRawLongBits(value);
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		try {
+			pool.writeByte(CONSTANT_DOUBLE);
+			pool.writeDouble(value);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		// doubles take up two entries in the constant pool
+		return register(key, 2);
+	}
+
+	private int nameAndType(String name, String descriptor)
+	{
+		String key = "N" + name + descriptor;
+		Integer index = poolIndices.get(key);
+		if (index != null)
+			return index;
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		writeEntry(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+		return register(key, 1);
+	}
+
+	private void writeEntry(int tag, int...indices)
+	{
+		try {
+			pool.writeByte(tag);
+			for (int i : indices)
+				pool.writeShort(i);
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private int register(String key, int size)
+	{
+		int index = poolCount;
+		poolCount += size;
+		if (poolCount > 0xFFFF)
+			throw new IllegalStateException("Constant pool is too large");
+		poolIndices.put(key, index);
+		return index;
+	}
+
+	/**
+	 * Adds a method with the given bytecode, which must not contain branches.
+	 * @param access - Access flags of the method.
+	 * @param name - Name of the method.
+	 * @param descriptor - JVM descriptor of the method, e.g. "([D)D".
+	 * @param maxStack - Maximum depth of the operand stack in words.
+	 * @param maxLocals - Number of words of local variables, including this.
+	 * @param code - The bytecode of the method.
+	 */
+	public void addMethod(int access, String name, String descriptor,
+			int maxStack, int maxLocals, byte[] code)
+	{
+		int nameIndex = utf8(name);
+		int descriptorIndex = utf8(descriptor);
+		int codeIndex = utf8("Code");
+		try {
+			methods.writeShort(access);
+			methods.writeShort(nameIndex);
+			methods.writeShort(descriptorIndex);
+			methods.writeShort(1);
+
+			methods.writeShort(codeIndex);
+			methods.writeInt(12 + code.length);
+			methods.writeShort(maxStack);
+			methods.writeShort(maxLocals);
+			methods.writeInt(code.length);
+			methods.write(code);
+			methods.writeShort(0); // exception table
+			methods.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		methodCount++;
+	}
+
+	public byte[] toByteArray()
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(MAGIC);
+			out.writeShort(0);
+			out.writeShort(MAJOR_VERSION);
+			out.writeShort(poolCount);
+			poolBytes.writeTo(out);
+			out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(interfaces.length);
+			for (int i : interfaces)
+				out.writeShort(i);
+			out.writeShort(0); // fields
+			out.writeShort(methodCount);
+			methodBytes.writeTo(out);
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return bytes.toByteArray();
+	}
+}
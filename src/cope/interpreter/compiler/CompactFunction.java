@@ -0,0 +1,435 @@
+package cope.interpreter.compiler;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.FunctionalVariable;
+import cope.interpreter.nodes.UnaryFunction;
+
+/**
+ * A function tree stored as parallel primitive arrays rather than as
+ * objects, for holding many large trees in little memory. Each node is an
+ * opcode, the indices of its children, or for a constant the index of its
+ * value in a pool of constants and for a variable the index of its name,
+ * and the nodes are stored in postorder, so a node's children always come
+ * before it and the root is last. A node costs 9 bytes, against several
+ * objects for a node of a tree.
+ *
+ * A subtree shared between several parents in the tree, as the subtrees of
+ * a derivative are, is stored once, and is shared again when the tree is
+ * rebuilt by toFunction. Names given to nodes with withName are not kept.
+ *
+ * This is the one flattening of trees into arrays: EvaluationPlan,
+ * GradientEvaluator and StackProgram are built from the nodes of a
+ * CompactFunction, read through getOp, getLeft, getRight and getConstant.
+ *
+ * Only the standard instructions can be stored. Variables named in the
+ * constructor are read from the point a function is evaluated at; the
+ * standard variables pi and e take their values unless they are named.
+ * A CompactFunction is immutable, so can be shared between threads.
+ *
+ * The arrays can be written to a ByteBuffer and read back with read, in a
+ * format that holds only numbers and the names of the variables, so it can
+ * be kept on disk and read without parsing anything.
+ */
+public class CompactFunction
+{
+	private final byte[] ops;
+	private final int[] left, right;
+	private final double[] constants;
+	private final String[] variables;
+	private final double[] standardValues;
+	private final int dimensions;
+
+	/**
+	 * Stores f with its variables, other than pi and e, in alphabetical order.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones.
+	 */
+	public CompactFunction(Function f) throws Exception
+	{
+		this(f, variablesOf(f));
+	}
+
+	/**
+	 * @param f - The function to be stored.
+	 * @param variables - The variables of f, in the order of the components
+	 * of the points it is evaluated at.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones, or a variable that is not in variables.
+	 */
+	public CompactFunction(Function f, String...variables) throws Exception
+	{
+		Builder b = new Builder(variables);
+		b.add(f, new IdentityHashMap<Function, Integer>());
+
+		ops = Arrays.copyOf(b.ops, b.size);
+		left = Arrays.copyOf(b.left, b.size);
+		right = Arrays.copyOf(b.right, b.size);
+		constants = new double[b.constants.size()];
+		for (int i = 0; i < constants.length; i++)
+			constants[i] = b.constants.get(i);
+		this.variables = b.variables.toArray(new String[b.variables.size()]);
+		this.dimensions = variables.length;
+		standardValues = standardValues(this.variables, dimensions);
+	}
+
+	private CompactFunction(byte[] ops, int[] left, int[] right, double[] constants,
+			String[] variables, int dimensions)
+	{
+		this.ops = ops;
+		this.left = left;
+		this.right = right;
+		this.constants = constants;
+		this.variables = variables;
+		this.dimensions = dimensions;
+		standardValues = standardValues(variables, dimensions);
+	}
+
+	/**
+	 * @return The values of the standard variables named after the first
+	 * dimensions variables.
+	 */
+	private static double[] standardValues(String[] variables, int dimensions)
+	{
+		double[] values = new double[variables.length - dimensions];
+		for (int i = 0; i < values.length; i++)
+			values[i] = variables[dimensions + i].equals(Function.PI.getName())
+					? Function.PI.getDouble() : Function.E.getDouble();
+		return values;
+	}
+
+	private static String[] variablesOf(Function f)
+	{
+		ArrayList<String> variables = new ArrayList<String>(f.getVariables());
+		variables.remove(Function.PI.getName());
+		variables.remove(Function.E.getName());
+		String[] names = variables.toArray(new String[variables.size()]);
+		Arrays.sort(names);
+		return names;
+	}
+
+	/**
+	 * The growing arrays of a CompactFunction while its tree is read.
+	 */
+	private static class Builder
+	{
+		private byte[] ops = new byte[16];
+		private int[] left = new int[16], right = new int[16];
+		private int size = 0;
+		private ArrayList<Double> constants = new ArrayList<Double>();
+		private HashMap<Long, Integer> constantIndices = new HashMap<Long, Integer>();
+		private ArrayList<String> variables;
+
+		Builder(String[] variables)
+		{
+			this.variables = new ArrayList<String>(Arrays.asList(variables));
+		}
+
+		/**
+		 * Adds f and any of its subtrees not already added.
+		 * @return The index of f.
+		 */
+		int add(Function f, IdentityHashMap<Function, Integer> added) throws Exception
+		{
+			Integer index = added.get(f);
+			if (index != null)
+				return index;
+
+			int op, l = -1, r = -1;
+			if (f instanceof Constant)
+			{
+				op = Opcodes.CONSTANT;
+				double value = ((Constant) f).getDoubleValue();
+				Long bits = Double.doubleToLongBits(value);
+				Integer c = constantIndices.get(bits);
+				if (c == null) {
+					c = constants.size();
+					constants.add(value);
+					constantIndices.put(bits, c);
+				}
+				l = c;
+			}
+			else if (f instanceof FunctionalVariable)
+			{
+				String name = ((FunctionalVariable) f).getName();
+				op = Opcodes.VARIABLE;
+				l = variables.indexOf(name);
+				if (l < 0)
+				{
+					if (!name.equals(Function.PI.getName()) && !name.equals(Function.E.getName()))
+						throw new Exception("Cannot flatten for " + variables + ": " + name + " is not one of them.");
+					l = variables.size();
+					variables.add(name);
+				}
+			}
+			else if (f instanceof UnaryFunction)
+			{
+				UnaryFunction u = (UnaryFunction) f;
+				op = Opcodes.of(u.getInstruction());
+				if (op < 0)
+					throw new Exception("Cannot flatten unary instruction " + u.getInstruction().getString());
+				l = add(u.getChild(), added);
+			}
+			else if (f instanceof BinaryFunction)
+			{
+				BinaryFunction b = (BinaryFunction) f;
+				op = Opcodes.of(b.getInstruction());
+				if (op < 0)
+					throw new Exception("Cannot flatten binary instruction " + b.getInstruction().getString());
+				l = add(b.getLeftChild(), added);
+				r = add(b.getRightChild(), added);
+			}
+			else throw new Exception("Cannot flatten node of type " + f.getType());
+
+			if (size == ops.length)
+			{
+				int capacity = 2 * size;
+				ops = Arrays.copyOf(ops, capacity);
+				left = Arrays.copyOf(left, capacity);
+				right = Arrays.copyOf(right, capacity);
+			}
+			ops[size] = (byte) op;
+			left[size] = l;
+			right[size] = r;
+			added.put(f, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * @return The number of nodes stored, counting a shared subtree once.
+	 */
+	public int getSize() { return ops.length; }
+
+	/**
+	 * @return The opcode of node i, one of those of Opcodes.
+	 */
+	public int getOp(int i) { return ops[i]; }
+
+	/**
+	 * @return The index of the left or only child of node i, of its constant
+	 * if it is a constant, or of its variable if it is a variable.
+	 */
+	public int getLeft(int i) { return left[i]; }
+
+	/**
+	 * @return The index of the right child of node i.
+	 */
+	public int getRight(int i) { return right[i]; }
+
+	/**
+	 * @return Whether the value of node i is fixed: a constant, or one of the
+	 * standard variables pi and e when they were not named as variables.
+	 */
+	public boolean isConstant(int i)
+	{
+		return ops[i] == Opcodes.CONSTANT || (ops[i] == Opcodes.VARIABLE && left[i] >= dimensions);
+	}
+
+	/**
+	 * @return The value of node i, which must be constant; see isConstant.
+	 */
+	public double getConstant(int i)
+	{
+		return ops[i] == Opcodes.CONSTANT ? constants[left[i]] : standardValues[left[i] - dimensions];
+	}
+
+	/**
+	 * @return The number of components of the points the function is
+	 * evaluated at.
+	 */
+	public int getDimensions() { return dimensions; }
+
+	/**
+	 * @return The variables read from the points the function is evaluated
+	 * at, in order.
+	 */
+	public String[] getVariables() { return Arrays.copyOf(variables, dimensions); }
+
+	/**
+	 * @return The number of bytes held in the arrays of this function.
+	 */
+	public long getFootprint()
+	{
+		long bytes = ops.length + 4L * (left.length + right.length)
+				+ 8L * (constants.length + standardValues.length);
+		for (String v : variables)
+			bytes += 2 * v.length();
+		return bytes;
+	}
+
+	/**
+	 * @return The number of bytes write will put into a buffer.
+	 */
+	public int getSerializedSize()
+	{
+		int bytes = 16 + ops.length * 9 + constants.length * 8;
+		for (String v : variables)
+			bytes += 4 + v.getBytes(StandardCharsets.UTF_8).length;
+		return bytes;
+	}
+
+	/**
+	 * Writes the function at the position of buffer, which must have
+	 * getSerializedSize() bytes remaining: the number of variables read from
+	 * the point, the names of all the variables, the constants and then the
+	 * nodes, each part preceded by its length.
+	 */
+	public void write(ByteBuffer buffer)
+	{
+		buffer.putInt(dimensions);
+		buffer.putInt(variables.length);
+		for (String v : variables)
+		{
+			byte[] name = v.getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(name.length);
+			buffer.put(name);
+		}
+		buffer.putInt(constants.length);
+		for (double c : constants)
+			buffer.putDouble(c);
+		buffer.putInt(ops.length);
+		buffer.put(ops);
+		for (int l : left)
+			buffer.putInt(l);
+		for (int r : right)
+			buffer.putInt(r);
+	}
+
+	/**
+	 * Reads a function written by write from the position of buffer,
+	 * checking that every node refers to a valid constant, variable or child.
+	 * @return The function read, with the position of buffer moved past it.
+	 * @throws Exception if the bytes are not a function written by write.
+	 */
+	public static CompactFunction read(ByteBuffer buffer) throws Exception
+	{
+		try {
+			int dimensions = buffer.getInt();
+			String[] variables = new String[checkLength(buffer.getInt(), buffer, 4)];
+			if (dimensions < 0 || dimensions > variables.length)
+				throw new Exception("Corrupt function: " + dimensions + " of " + variables.length + " variables.");
+			for (int i = 0; i < variables.length; i++)
+			{
+				byte[] name = new byte[checkLength(buffer.getInt(), buffer, 1)];
+				buffer.get(name);
+				variables[i] = new String(name, StandardCharsets.UTF_8);
+				if (i >= dimensions && !variables[i].equals(Function.PI.getName())
+						&& !variables[i].equals(Function.E.getName()))
+					throw new Exception("Corrupt function: " + variables[i] + " is not a standard variable.");
+			}
+			double[] constants = new double[checkLength(buffer.getInt(), buffer, 8)];
+			for (int i = 0; i < constants.length; i++)
+				constants[i] = buffer.getDouble();
+			int size = checkLength(buffer.getInt(), buffer, 9);
+			if (size == 0)
+				throw new Exception("Corrupt function: no nodes.");
+			byte[] ops = new byte[size];
+			int[] left = new int[size], right = new int[size];
+			buffer.get(ops);
+			for (int i = 0; i < size; i++)
+				left[i] = buffer.getInt();
+			for (int i = 0; i < size; i++)
+				right[i] = buffer.getInt();
+
+			for (int i = 0; i < size; i++)
+			{
+				int op = ops[i], l = left[i], r = right[i];
+				boolean valid;
+				if (op == Opcodes.CONSTANT)
+					valid = l >= 0 && l < constants.length;
+				else if (op == Opcodes.VARIABLE)
+					valid = l >= 0 && l < variables.length;
+				else if (Opcodes.isUnary(op))
+					valid = l >= 0 && l < i;
+				else if (Opcodes.isBinary(op))
+					valid = l >= 0 && l < i && r >= 0 && r < i;
+				else valid = false;
+				if (!valid)
+					throw new Exception("Corrupt function: invalid node " + i + ".");
+			}
+			return new CompactFunction(ops, left, right, constants, variables, dimensions);
+		} catch (BufferUnderflowException e) {
+			throw new Exception("Corrupt function: truncated.", e);
+		}
+	}
+
+	/**
+	 * @return length, if buffer holds at least length items of the given
+	 * size.
+	 */
+	private static int checkLength(int length, ByteBuffer buffer, int itemSize) throws Exception
+	{
+		if (length < 0 || (long) length * itemSize > buffer.remaining())
+			throw new Exception("Corrupt function: invalid length " + length + ".");
+		return length;
+	}
+
+	/**
+	 * Allocates the temporaries for an evaluation; see
+	 * evaluate(double[], double[]).
+	 */
+	public double evaluate(double[] point)
+	{
+		return evaluate(point, new double[ops.length]);
+	}
+
+	/**
+	 * Evaluates the function at a point.
+	 * @param point - The value of each variable.
+	 * @param temps - The array the values of the nodes are written to, at
+	 * least getSize() long.
+	 * @return The value of the function at point.
+	 */
+	public double evaluate(double[] point, double[] temps)
+	{
+		int size = ops.length;
+		for (int i = 0; i < size; i++)
+		{
+			int op = ops[i];
+			if (op == Opcodes.CONSTANT)
+				temps[i] = constants[left[i]];
+			else if (op == Opcodes.VARIABLE)
+			{
+				int l = left[i];
+				temps[i] = l < dimensions ? point[l] : standardValues[l - dimensions];
+			}
+			else if (Opcodes.isUnary(op))
+				temps[i] = Opcodes.apply(op, temps[left[i]]);
+			else
+				temps[i] = Opcodes.apply(op, temps[left[i]], temps[right[i]]);
+		}
+		return temps[size - 1];
+	}
+
+	/**
+	 * @return The function tree, with a node for each node stored.
+	 */
+	public Function toFunction()
+	{
+		int size = ops.length;
+		Function[] nodes = new Function[size];
+		for (int i = 0; i < size; i++)
+		{
+			int op = ops[i];
+			if (op == Opcodes.CONSTANT)
+				nodes[i] = new Constant(constants[left[i]]);
+			else if (op == Opcodes.VARIABLE)
+				nodes[i] = new FunctionalVariable(variables[left[i]]);
+			else if (Opcodes.isUnary(op))
+				nodes[i] = new UnaryFunction(nodes[left[i]], Opcodes.getUnaryInstruction(op));
+			else
+				nodes[i] = new BinaryFunction(nodes[left[i]], nodes[right[i]], Opcodes.getBinaryInstruction(op));
+		}
+		return nodes[size - 1];
+	}
+}
@@ -0,0 +1,11 @@
+package cope.interpreter.compiler;
+
+/**
+ * A function tree that has been compiled to JVM bytecode by the
+ * FunctionCompiler. The values of the variables are passed in the order
+ * the variables were given to the compiler.
+ */
+public interface CompiledFunction
+{
+	public double applyAsDouble(double[] vars);
+}
@@ -0,0 +1,237 @@
+package cope.interpreter.compiler;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * A function flattened into a list of numbered temporaries, each computed
+ * from a constant, a variable or earlier temporaries, in which every
+ * distinct subexpression of the function appears only once. Derivatives in
+ * particular repeat the same subtrees many times over, and a plan computes
+ * each of them once per evaluation however often it occurs in the tree.
+ *
+ * Subexpressions are found by value numbering: the nodes of the function's
+ * CompactFunction are visited in postorder, and a node is given the
+ * temporary of an earlier one with the same instruction applied to the same
+ * temporaries, so finding them takes time linear in the size of the tree.
+ *
+ * Only the standard instructions of BinaryFunction and UnaryFunction can be
+ * planned. The standard variables pi and e become constants unless they are
+ * named as variables of the plan. A plan is immutable, and can be shared
+ * between threads as long as each passes its own temporaries to evaluate.
+ */
+public class EvaluationPlan
+{
+	private int[] ops, left, right;
+	private double[] constants;
+	private int size = 0;
+	private long nodes;
+
+	/**
+	 * @param f - The function to be planned.
+	 * @param variables - The variables of f, in the order of the components
+	 * of the points it is evaluated at.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones, or a variable that is not in variables.
+	 */
+	public EvaluationPlan(Function f, String...variables) throws Exception
+	{
+		CompactFunction compact = new CompactFunction(f, variables);
+		int n = compact.getSize();
+		ops = new int[n];
+		left = new int[n];
+		right = new int[n];
+		constants = new double[n];
+
+		// the temporary of each node of compact
+		int[] numbers = new int[n];
+		HashMap<Key, Integer> keys = new HashMap<Key, Integer>();
+		for (int i = 0; i < n; i++)
+		{
+			int op = compact.getOp(i), l = -1, r = -1;
+			double constant = 0;
+			if (compact.isConstant(i))
+			{
+				op = Opcodes.CONSTANT;
+				constant = compact.getConstant(i);
+			}
+			else if (op == Opcodes.VARIABLE)
+				l = compact.getLeft(i);
+			else
+			{
+				l = numbers[compact.getLeft(i)];
+				if (Opcodes.isBinary(op))
+					r = numbers[compact.getRight(i)];
+			}
+
+			Key key = new Key(op, l, r, constant);
+			Integer index = keys.get(key);
+			if (index == null)
+			{
+				index = add(op, l, r, constant);
+				keys.put(key, index);
+			}
+			numbers[i] = index;
+		}
+		nodes = countNodes(f, new IdentityHashMap<Function, Long>());
+	}
+
+	private int add(int op, int l, int r, double constant)
+	{
+		ops[size] = op;
+		left[size] = l;
+		right[size] = r;
+		constants[size] = constant;
+		return size++;
+	}
+
+	/**
+	 * @return The number of nodes in the tree of f, counting a subtree
+	 * shared between several parents once for each of them.
+	 */
+	private long countNodes(Function f, IdentityHashMap<Function, Long> counted)
+	{
+		Long count = counted.get(f);
+		if (count != null)
+			return count;
+		long c = 1;
+		for (int i = 0; i < f.getChildCount(); i++)
+			c += countNodes(f.getChild(i), counted);
+		counted.put(f, c);
+		return c;
+	}
+
+	/**
+	 * @return The number of temporaries computed by each evaluation.
+	 */
+	public int getSize() { return size; }
+
+	/**
+	 * @return The opcode of temporary i, one of those of Opcodes.
+	 */
+	public int getOp(int i) { return ops[i]; }
+
+	/**
+	 * @return The temporary holding the left or only operand of temporary i,
+	 * or the index of its variable if it is a variable.
+	 */
+	public int getLeft(int i) { return left[i]; }
+
+	/**
+	 * @return The temporary holding the right operand of temporary i.
+	 */
+	public int getRight(int i) { return right[i]; }
+
+	/**
+	 * @return The value of temporary i if it is a constant.
+	 */
+	public double getConstant(int i) { return constants[i]; }
+
+	/**
+	 * @return The number of nodes in the planned function's tree.
+	 */
+	public long getNodeCount() { return nodes; }
+
+	/**
+	 * @return The number of nodes of the tree that are not computed by the
+	 * plan, as their values are those of earlier temporaries.
+	 */
+	public long getEliminated() { return nodes - size; }
+
+	/**
+	 * Allocates the temporaries for an evaluation; see
+	 * evaluate(double[], double[]).
+	 */
+	public double evaluate(double[] point)
+	{
+		return evaluate(point, new double[size]);
+	}
+
+	/**
+	 * Evaluates the plan at a point.
+	 * @param point - The value of each variable.
+	 * @param temps - The array the temporaries are written to, at least
+	 * getSize() long.
+	 * @return The value of the function at point.
+	 */
+	public double evaluate(double[] point, double[] temps)
+	{
+		for (int i = 0; i < size; i++)
+		{
+			int op = ops[i];
+			if (op == Opcodes.CONSTANT)
+				temps[i] = constants[i];
+			else if (op == Opcodes.VARIABLE)
+				temps[i] = point[left[i]];
+			else if (Opcodes.isUnary(op))
+				temps[i] = Opcodes.apply(op, temps[left[i]]);
+			else
+				temps[i] = Opcodes.apply(op, temps[left[i]], temps[right[i]]);
+		}
+		return temps[size - 1];
+	}
+
+	/**
+	 * @return The plan written out one temporary per line, such as
+	 * "t2 = t0*t1", with the value of the function in the last.
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder str = new StringBuilder();
+		for (int i = 0; i < size; i++)
+		{
+			int op = ops[i];
+			str.append('t').append(i).append(" = ");
+			if (op == Opcodes.CONSTANT)
+				str.append(constants[i]);
+			else if (op == Opcodes.VARIABLE)
+				str.append("v").append(left[i]);
+			else if (Opcodes.isUnary(op))
+				str.append(Opcodes.getString(op)).append("(t").append(left[i]).append(')');
+			else
+				str.append('t').append(left[i]).append(Opcodes.getString(op)).append('t').append(right[i]);
+			str.append('\n');
+		}
+		return str.toString();
+	}
+
+	/**
+	 * The value number of a temporary: two nodes with equal keys compute
+	 * the same value.
+	 */
+	private static class Key
+	{
+		private final int op, left, right;
+		private final long constant;
+
+		Key(int op, int left, int right, double constant)
+		{
+			this.op = op;
+			this.left = left;
+			this.right = right;
+			this.constant = Double.doubleToLongBits(constant);
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return k.op == op && k.left == left && k.right == right && k.constant == constant;
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			int h = op;
+			h = 31 * h + left;
+			h = 31 * h + right;
+			return 31 * h + (int) (constant ^ (constant >>> 32));
+		}
+	}
+}
@@ -0,0 +1,228 @@
+package cope.interpreter.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.IdentityHashMap;
+
+import cope.interpreter.instrumentation.CompileEvent;
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.FunctionalVariable;
+import cope.interpreter.nodes.UnaryFunction;
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Compiles function trees into hidden JVM classes implementing
+ * CompiledFunction. The tree is flattened into straight-line double
+ * arithmetic, with unary operations becoming direct calls to the methods of
+ * java.lang.Math, so the JIT is free to inline the whole expression.
+ *
+ * Only the standard instructions of BinaryFunction and UnaryFunction can be
+ * compiled. The standard variables pi and e are compiled as constants
+ * unless they are named as variables of the compiled function.
+ */
+public class FunctionCompiler
+{
+	private static final String CLASS_NAME = "cope/interpreter/compiler/GeneratedFunction";
+	private static final String INTERFACE_NAME = "cope/interpreter/compiler/CompiledFunction";
+	private static final int MAX_CODE_LENGTH = 0xFFFF;
+
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int ICONST_0 = 0x03;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC2_W = 0x14;
+	private static final int DALOAD = 0x31;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6b;
+	private static final int DDIV = 0x6f;
+	private static final int DREM = 0x73;
+	private static final int DRETURN = 0xaf;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+
+	private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+	private static final IdentityHashMap<BinaryInstruction, Integer> binaryOpcodes =
+			new IdentityHashMap<BinaryInstruction, Integer>();
+	private static final IdentityHashMap<UnaryInstruction, String> unaryMethods =
+			new IdentityHashMap<UnaryInstruction, String>();
+
+	static
+	{
+		binaryOpcodes.put(BinaryFunction.addition, DADD);
+		binaryOpcodes.put(BinaryFunction.subtraction, DSUB);
+		binaryOpcodes.put(BinaryFunction.multiplication, DMUL);
+		binaryOpcodes.put(BinaryFunction.division, DDIV);
+		binaryOpcodes.put(BinaryFunction.modulo, DREM);
+
+		unaryMethods.put(UnaryFunction.sin, "sin");
+		unaryMethods.put(UnaryFunction.cos, "cos");
+		unaryMethods.put(UnaryFunction.tan, "tan");
+		unaryMethods.put(UnaryFunction.abs, "abs");
+		unaryMethods.put(UnaryFunction.sinh, "sinh");
+		unaryMethods.put(UnaryFunction.cosh, "cosh");
+		unaryMethods.put(UnaryFunction.tanh, "tanh");
+		unaryMethods.put(UnaryFunction.floor, "floor");
+		unaryMethods.put(UnaryFunction.ceil, "ceil");
+		unaryMethods.put(UnaryFunction.sqrt, "sqrt");
+		unaryMethods.put(UnaryFunction.ln, "log");
+	}
+
+	public CompiledFunction compile(Function f) throws Exception
+	{
+		return compile(f, "x");
+	}
+
+	/**
+	 * Compiles f into a new hidden class.
+	 * @param f - The function to be compiled.
+	 * @param variables - The variables of f, in the order their values will
+	 * be passed to CompiledFunction.applyAsDouble.
+	 * @return An instance of the compiled class.
+	 * @throws Exception if f contains an instruction or variable that cannot
+	 * be compiled, or is too large to fit in a single method.
+	 */
+	public CompiledFunction compile(Function f, String...variables) throws Exception
+	{
+		CompileEvent event = new CompileEvent();
+		event.begin();
+		ClassFileWriter writer = new ClassFileWriter(CLASS_NAME, "java/lang/Object", INTERFACE_NAME);
+
+		ByteArrayOutputStream init = new ByteArrayOutputStream();
+		init.write(ALOAD_0);
+		init.write(INVOKESPECIAL);
+		writeShort(init, writer.methodRef("java/lang/Object", "<init>", "()V"));
+		init.write(RETURN);
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "<init>", "()V", 1, 1, init.toByteArray());
+
+		ByteArrayOutputStream code = new ByteArrayOutputStream();
+		emit(f, variables, writer, code);
+		code.write(DRETURN);
+		if (code.size() > MAX_CODE_LENGTH)
+			throw new Exception("Cannot compile " + f.getString() + ": the function is too large.");
+		writer.addMethod(ClassFileWriter.ACC_PUBLIC, "applyAsDouble", "([D)D",
+				maxStack(f), 2, code.toByteArray());
+
+		CompiledFunction compiled;
+		try {
+			MethodHandles.Lookup hidden = lookup.defineHiddenClass(writer.toByteArray(), true);
+			compiled = (CompiledFunction) hidden.findConstructor(
+					hidden.lookupClass(), MethodType.methodType(void.class)).invoke();
+		} catch (Throwable t) {
+			throw new Exception("Cannot load compiled class for " + f.getString(), t);
+		}
+		event.record(f, variables.length, code.size());
+		return compiled;
+	}
+
+	/**
+	 * Writes bytecode that leaves the value of f on top of the stack.
+	 */
+	private void emit(Function f, String[] variables, ClassFileWriter writer,
+			ByteArrayOutputStream code) throws Exception
+	{
+		if (f instanceof Constant)
+		{
+			code.write(LDC2_W);
+			writeShort(code, writer.doubleConstant(((Constant) f).getDoubleValue()));
+		}
+		else if (f instanceof FunctionalVariable)
+		{
+			String name = ((FunctionalVariable) f).getName();
+			int slot = indexOf(variables, name);
+			if (slot >= 0)
+			{
+				code.write(ALOAD_1);
+				pushInt(code, slot);
+				code.write(DALOAD);
+			}
+			else if (name.equals(Function.PI.getName()) || name.equals(Function.E.getName()))
+			{
+				double value = name.equals(Function.PI.getName()) ? Function.PI.getDouble() : Function.E.getDouble();
+				code.write(LDC2_W);
+				writeShort(code, writer.doubleConstant(value));
+			}
+			else throw new Exception("Cannot compile " + name + ": it is not a variable of the function.");
+		}
+		else if (f instanceof UnaryFunction)
+		{
+			UnaryInstruction i = ((UnaryFunction) f).getInstruction();
+			String method = unaryMethods.get(i);
+			if (method == null)
+				throw new Exception("Cannot compile unary instruction " + i.getString());
+			emit(f.getChild(0), variables, writer, code);
+			code.write(INVOKESTATIC);
+			writeShort(code, writer.methodRef("java/lang/Math", method, "(D)D"));
+		}
+		else if (f instanceof BinaryFunction)
+		{
+			BinaryFunction b = (BinaryFunction) f;
+			BinaryInstruction i = b.getInstruction();
+			emit(b.getLeftChild(), variables, writer, code);
+			emit(b.getRightChild(), variables, writer, code);
+			if (i == BinaryFunction.exponentiation)
+			{
+				code.write(INVOKESTATIC);
+				writeShort(code, writer.methodRef("java/lang/Math", "pow", "(DD)D"));
+			}
+			else
+			{
+				Integer opcode = binaryOpcodes.get(i);
+				if (opcode == null)
+					throw new Exception("Cannot compile binary instruction " + i.getString());
+				code.write(opcode);
+			}
+		}
+		else throw new Exception("Cannot compile node of type " + f.getType());
+	}
+
+	/**
+	 * @return The number of stack words needed to evaluate f, where each
+	 * double takes up two words.
+	 */
+	private int maxStack(Function f)
+	{
+		if (f instanceof BinaryFunction) {
+			BinaryFunction b = (BinaryFunction) f;
+			return Math.max(maxStack(b.getLeftChild()), 2 + maxStack(b.getRightChild()));
+		}
+		if (f instanceof UnaryFunction)
+			return maxStack(f.getChild(0));
+		return 2;
+	}
+
+	private int indexOf(String[] variables, String name)
+	{
+		for (int i = 0; i < variables.length; i++)
+			if (variables[i].equals(name))
+				return i;
+		return -1;
+	}
+
+	private void pushInt(ByteArrayOutputStream code, int value)
+	{
+		if (value <= 5)
+			code.write(ICONST_0 + value);
+		else if (value <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(value);
+		}
+		else {
+			code.write(SIPUSH);
+			writeShort(code, value);
+		}
+	}
+
+	private void writeShort(ByteArrayOutputStream code, int value)
+	{
+		code.write((value >>> 8) & 0xFF);
+		code.write(value & 0xFF);
+	}
+}
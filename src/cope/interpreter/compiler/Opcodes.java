@@ -0,0 +1,154 @@
+package cope.interpreter.compiler;
+
+import java.util.IdentityHashMap;
+
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.UnaryFunction;
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Integer codes for the kinds of node in a function tree and the standard
+ * instructions, for evaluators that flatten trees into primitive arrays and
+ * dispatch on a switch rather than through the instruction interfaces.
+ */
+public class Opcodes
+{
+	public static final int CONSTANT = 0;
+	public static final int VARIABLE = 1;
+
+	public static final int ADD = 2;
+	public static final int SUBTRACT = 3;
+	public static final int MULTIPLY = 4;
+	public static final int DIVIDE = 5;
+	public static final int MODULO = 6;
+	public static final int POWER = 7;
+
+	public static final int SIN = 8;
+	public static final int COS = 9;
+	public static final int TAN = 10;
+	public static final int ABS = 11;
+	public static final int SINH = 12;
+	public static final int COSH = 13;
+	public static final int TANH = 14;
+	public static final int FLOOR = 15;
+	public static final int CEIL = 16;
+	public static final int SQRT = 17;
+	public static final int LN = 18;
+
+	/** One more than the largest opcode. */
+	public static final int COUNT = 19;
+
+	private static final IdentityHashMap<BinaryInstruction, Integer> binaryOpcodes =
+			new IdentityHashMap<BinaryInstruction, Integer>();
+	private static final IdentityHashMap<UnaryInstruction, Integer> unaryOpcodes =
+			new IdentityHashMap<UnaryInstruction, Integer>();
+	private static final String[] strings = new String[COUNT];
+	private static final BinaryInstruction[] binaryInstructions = new BinaryInstruction[COUNT];
+	private static final UnaryInstruction[] unaryInstructions = new UnaryInstruction[COUNT];
+
+	static
+	{
+		binaryOpcodes.put(BinaryFunction.addition, ADD);
+		binaryOpcodes.put(BinaryFunction.subtraction, SUBTRACT);
+		binaryOpcodes.put(BinaryFunction.multiplication, MULTIPLY);
+		binaryOpcodes.put(BinaryFunction.division, DIVIDE);
+		binaryOpcodes.put(BinaryFunction.modulo, MODULO);
+		binaryOpcodes.put(BinaryFunction.exponentiation, POWER);
+
+		unaryOpcodes.put(UnaryFunction.sin, SIN);
+		unaryOpcodes.put(UnaryFunction.cos, COS);
+		unaryOpcodes.put(UnaryFunction.tan, TAN);
+		unaryOpcodes.put(UnaryFunction.abs, ABS);
+		unaryOpcodes.put(UnaryFunction.sinh, SINH);
+		unaryOpcodes.put(UnaryFunction.cosh, COSH);
+		unaryOpcodes.put(UnaryFunction.tanh, TANH);
+		unaryOpcodes.put(UnaryFunction.floor, FLOOR);
+		unaryOpcodes.put(UnaryFunction.ceil, CEIL);
+		unaryOpcodes.put(UnaryFunction.sqrt, SQRT);
+		unaryOpcodes.put(UnaryFunction.ln, LN);
+
+		strings[CONSTANT] = "constant";
+		strings[VARIABLE] = "variable";
+		for (BinaryInstruction i : binaryOpcodes.keySet()) {
+			strings[binaryOpcodes.get(i)] = i.getString();
+			binaryInstructions[binaryOpcodes.get(i)] = i;
+		}
+		for (UnaryInstruction i : unaryOpcodes.keySet()) {
+			strings[unaryOpcodes.get(i)] = i.getString();
+			unaryInstructions[unaryOpcodes.get(i)] = i;
+		}
+	}
+
+	/**
+	 * @return The opcode of a standard binary instruction, or -1 if i is not
+	 * a standard instruction.
+	 */
+	public static int of(BinaryInstruction i)
+	{
+		Integer op = binaryOpcodes.get(i);
+		return op == null ? -1 : op;
+	}
+
+	/**
+	 * @return The opcode of a standard unary instruction, or -1 if i is not
+	 * a standard instruction.
+	 */
+	public static int of(UnaryInstruction i)
+	{
+		Integer op = unaryOpcodes.get(i);
+		return op == null ? -1 : op;
+	}
+
+	/**
+	 * @return The standard binary instruction with the given opcode.
+	 */
+	public static BinaryInstruction getBinaryInstruction(int op) { return binaryInstructions[op]; }
+
+	/**
+	 * @return The standard unary instruction with the given opcode.
+	 */
+	public static UnaryInstruction getUnaryInstruction(int op) { return unaryInstructions[op]; }
+
+	/**
+	 * @return The string of the instruction with the given opcode, as it
+	 * would be written in a function.
+	 */
+	public static String getString(int op) { return strings[op]; }
+
+	public static boolean isBinary(int op) { return op >= ADD && op <= POWER; }
+	public static boolean isUnary(int op) { return op >= SIN && op <= LN; }
+
+	public static double apply(int op, double a, double b)
+	{
+		switch (op)
+		{
+		case ADD: 		return a + b;
+		case SUBTRACT: 	return a - b;
+		case MULTIPLY: 	return a * b;
+		case DIVIDE: 	return a / b;
+		case MODULO: 	return a % b;
+		case POWER: 	return Math.pow(a, b);
+		default: 		throw new IllegalArgumentException("Not a binary opcode: " + op);
+		}
+	}
+
+	public static double apply(int op, double a)
+	{
+		switch (op)
+		{
+		case SIN: 	return Math.sin(a);
+		case COS: 	return Math.cos(a);
+		case TAN: 	return Math.tan(a);
+		case ABS: 	return Math.abs(a);
+		case SINH: 	return Math.sinh(a);
+		case COSH: 	return Math.cosh(a);
+		case TANH: 	return Math.tanh(a);
+		case FLOOR: return Math.floor(a);
+		case CEIL: 	return Math.ceil(a);
+		case SQRT: 	return Math.sqrt(a);
+		case LN: 	return Math.log(a);
+		default: 	throw new IllegalArgumentException("Not a unary opcode: " + op);
+		}
+	}
+}
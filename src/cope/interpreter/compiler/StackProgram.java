@@ -0,0 +1,242 @@
+package cope.interpreter.compiler;
+
+import java.util.Arrays;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * A function compiled to a program for a small stack machine, for one-off
+ * functions where generating a class with the FunctionCompiler would cost
+ * more than it saves. Compiling is a single walk over the nodes of the
+ * function's CompactFunction, and evaluating is one loop dispatching on the
+ * instructions of an int array, pushing and popping values on a double
+ * array, which allocates nothing.
+ *
+ * Each instruction is an opcode of Opcodes: CONSTANT and VARIABLE push a
+ * constant or a component of the point, and are followed by the index of
+ * the constant or the component; the instructions of the standard binary
+ * and unary operations replace the values on top of the stack with their
+ * result. A subtree shared between several parents is evaluated once, its
+ * value kept by a STORE instruction in a local slot of the frame and pushed
+ * again by LOAD wherever else it is used.
+ *
+ * Only the standard instructions can be compiled. The standard variables pi
+ * and e become constants unless they are named as variables of the program.
+ * A program is immutable, and can be shared between threads as long as each
+ * passes its own frame to evaluate.
+ */
+public class StackProgram
+{
+	/** Copies the top of the stack into the local slot that follows. */
+	public static final int STORE = Opcodes.COUNT;
+	/** Pushes the value of the local slot that follows. */
+	public static final int LOAD = Opcodes.COUNT + 1;
+
+	private int[] program;
+	private double[] constants;
+	private int length = 0, constantCount = 0;
+	private int depth = 0, maxStack = 0, locals = 0;
+
+	/**
+	 * @param f - The function to be compiled.
+	 * @param variables - The variables of f, in the order of the components
+	 * of the points it is evaluated at.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones, or a variable that is not in variables.
+	 */
+	public StackProgram(Function f, String...variables) throws Exception
+	{
+		this(new CompactFunction(f, variables));
+	}
+
+	/**
+	 * @param f - The function to be compiled, read from the points in the
+	 * order of its variables.
+	 */
+	public StackProgram(CompactFunction f)
+	{
+		program = new int[32];
+		constants = new double[8];
+
+		int size = f.getSize();
+		int[] parents = new int[size];
+		for (int i = 0; i < size; i++)
+		{
+			int op = f.getOp(i);
+			if (Opcodes.isUnary(op))
+				parents[f.getLeft(i)]++;
+			else if (Opcodes.isBinary(op)) {
+				parents[f.getLeft(i)]++;
+				parents[f.getRight(i)]++;
+			}
+		}
+		int[] stored = new int[size];
+		Arrays.fill(stored, -1);
+		emit(f, size - 1, parents, stored);
+
+		program = Arrays.copyOf(program, length);
+		constants = Arrays.copyOf(constants, constantCount);
+	}
+
+	/**
+	 * Writes instructions that push the value of node i of f.
+	 * @param parents - The number of parents of each node.
+	 * @param stored - The local slot of each shared node already evaluated,
+	 * or -1.
+	 */
+	private void emit(CompactFunction f, int i, int[] parents, int[] stored)
+	{
+		if (stored[i] >= 0)
+		{
+			write(LOAD, stored[i]);
+			push();
+			return;
+		}
+
+		int op = f.getOp(i);
+		if (f.isConstant(i))
+		{
+			writeConstant(f.getConstant(i));
+			return;
+		}
+		else if (op == Opcodes.VARIABLE)
+		{
+			write(Opcodes.VARIABLE, f.getLeft(i));
+			push();
+			return;
+		}
+		else if (Opcodes.isUnary(op))
+		{
+			emit(f, f.getLeft(i), parents, stored);
+			write(op);
+		}
+		else
+		{
+			emit(f, f.getLeft(i), parents, stored);
+			emit(f, f.getRight(i), parents, stored);
+			write(op);
+			depth--;
+		}
+
+		if (parents[i] > 1)
+		{
+			stored[i] = locals;
+			write(STORE, locals++);
+		}
+	}
+
+	private void writeConstant(double value)
+	{
+		if (constantCount == constants.length)
+			constants = Arrays.copyOf(constants, 2 * constantCount);
+		constants[constantCount] = value;
+		write(Opcodes.CONSTANT, constantCount++);
+		push();
+	}
+
+	private void push()
+	{
+		depth++;
+		maxStack = Math.max(maxStack, depth);
+	}
+
+	private void write(int...instruction)
+	{
+		if (length + instruction.length > program.length)
+			program = Arrays.copyOf(program, 2 * program.length);
+		for (int i : instruction)
+			program[length++] = i;
+	}
+
+	/**
+	 * @return The length of the frame an evaluation needs: the deepest the
+	 * stack grows, and a local slot for each shared subtree.
+	 */
+	public int getFrameSize() { return maxStack + locals; }
+
+	/**
+	 * @return The number of ints in the program.
+	 */
+	public int getLength() { return length; }
+
+	/**
+	 * Allocates the frame for an evaluation; see evaluate(double[], double[]).
+	 */
+	public double evaluate(double[] point)
+	{
+		return evaluate(point, new double[getFrameSize()]);
+	}
+
+	/**
+	 * Runs the program at a point.
+	 * @param point - The value of each variable.
+	 * @param frame - The array holding the stack and the local slots, at
+	 * least getFrameSize() long.
+	 * @return The value of the function at point.
+	 */
+	public double evaluate(double[] point, double[] frame)
+	{
+		int[] program = this.program;
+		double[] constants = this.constants;
+		int length = this.length, base = maxStack;
+		int sp = -1;
+		int pc = 0;
+		while (pc < length)
+		{
+			switch (program[pc++])
+			{
+			case Opcodes.CONSTANT:	frame[++sp] = constants[program[pc++]]; break;
+			case Opcodes.VARIABLE:	frame[++sp] = point[program[pc++]]; break;
+			case STORE:				frame[base + program[pc++]] = frame[sp]; break;
+			case LOAD:				frame[++sp] = frame[base + program[pc++]]; break;
+
+			case Opcodes.ADD:		frame[sp - 1] += frame[sp]; sp--; break;
+			case Opcodes.SUBTRACT:	frame[sp - 1] -= frame[sp]; sp--; break;
+			case Opcodes.MULTIPLY:	frame[sp - 1] *= frame[sp]; sp--; break;
+			case Opcodes.DIVIDE:	frame[sp - 1] /= frame[sp]; sp--; break;
+			case Opcodes.MODULO:	frame[sp - 1] %= frame[sp]; sp--; break;
+			case Opcodes.POWER:		frame[sp - 1] = Math.pow(frame[sp - 1], frame[sp]); sp--; break;
+
+			case Opcodes.SIN:		frame[sp] = Math.sin(frame[sp]); break;
+			case Opcodes.COS:		frame[sp] = Math.cos(frame[sp]); break;
+			case Opcodes.TAN:		frame[sp] = Math.tan(frame[sp]); break;
+			case Opcodes.ABS:		frame[sp] = Math.abs(frame[sp]); break;
+			case Opcodes.SINH:		frame[sp] = Math.sinh(frame[sp]); break;
+			case Opcodes.COSH:		frame[sp] = Math.cosh(frame[sp]); break;
+			case Opcodes.TANH:		frame[sp] = Math.tanh(frame[sp]); break;
+			case Opcodes.FLOOR:		frame[sp] = Math.floor(frame[sp]); break;
+			case Opcodes.CEIL:		frame[sp] = Math.ceil(frame[sp]); break;
+			case Opcodes.SQRT:		frame[sp] = Math.sqrt(frame[sp]); break;
+			case Opcodes.LN:		frame[sp] = Math.log(frame[sp]); break;
+			}
+		}
+		return frame[0];
+	}
+
+	/**
+	 * @return The program written out one instruction per line, such as
+	 * "push 2.0" or "*".
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder str = new StringBuilder();
+		int pc = 0;
+		while (pc < length)
+		{
+			int op = program[pc++];
+			if (op == Opcodes.CONSTANT)
+				str.append("push ").append(constants[program[pc++]]);
+			else if (op == Opcodes.VARIABLE)
+				str.append("push v").append(program[pc++]);
+			else if (op == STORE)
+				str.append("store l").append(program[pc++]);
+			else if (op == LOAD)
+				str.append("push l").append(program[pc++]);
+			else
+				str.append(Opcodes.getString(op));
+			str.append('\n');
+		}
+		return str.toString();
+	}
+}
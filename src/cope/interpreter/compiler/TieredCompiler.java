@@ -0,0 +1,130 @@
+package cope.interpreter.compiler;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * Manages the execution of many functions, most of which are evaluated only
+ * a few times, by compiling only those that turn out to be evaluated often.
+ * A function wrapped by the manager is evaluated by walking its tree at
+ * first, and counts its evaluations. Once the count reaches the threshold,
+ * the function is compiled by a FunctionCompiler on the manager's executor,
+ * and later evaluations call the compiled class.
+ *
+ * Callers are never blocked by a compilation: they go on walking the tree
+ * until the compiled function is ready. A function that cannot be compiled
+ * is walked for good. A manager can be shared between threads.
+ */
+public class TieredCompiler
+{
+	public static final int DEFAULT_THRESHOLD = 1000;
+
+	private static ExecutorService defaultExecutor = null;
+
+	private final int threshold;
+	private final Executor executor;
+	private final FunctionCompiler compiler = new FunctionCompiler();
+
+	private final AtomicLong compiled = new AtomicLong(), failed = new AtomicLong();
+
+	/**
+	 * Compiles functions once they have been evaluated DEFAULT_THRESHOLD
+	 * times, on a single background thread shared by such managers.
+	 */
+	public TieredCompiler()
+	{
+		this(DEFAULT_THRESHOLD, getDefaultExecutor());
+	}
+
+	/**
+	 * @param threshold - The number of evaluations after which a function is
+	 * compiled; 0 compiles every function as soon as it is wrapped.
+	 * @param executor - Runs the compilations.
+	 */
+	public TieredCompiler(int threshold, Executor executor)
+	{
+		if (threshold < 0)
+			throw new IllegalArgumentException("Threshold must not be negative: " + threshold);
+		this.threshold = threshold;
+		this.executor = executor;
+	}
+
+	private static synchronized ExecutorService getDefaultExecutor()
+	{
+		if (defaultExecutor == null)
+			defaultExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread t = new Thread(r, "TieredCompiler");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return defaultExecutor;
+	}
+
+	/**
+	 * @param f - The function to be evaluated.
+	 * @param variables - The variables of f, in the order their values will
+	 * be passed to applyAsDouble.
+	 * @return f, evaluated by walking its tree until it is compiled.
+	 * @throws Exception if f has a variable that is not in variables.
+	 */
+	public TieredFunction wrap(Function f, String...variables) throws Exception
+	{
+		TieredFunction tiered = new TieredFunction(this, f, variables);
+		if (threshold == 0)
+			tiered.promote();
+		return tiered;
+	}
+
+	public int getThreshold() { return threshold; }
+
+	/**
+	 * @return The number of functions compiled by this manager so far.
+	 */
+	public long getCompiled() { return compiled.get(); }
+
+	/**
+	 * @return The number of functions that could not be compiled, and are
+	 * walked for good.
+	 */
+	public long getFailed() { return failed.get(); }
+
+	/**
+	 * Compiles f on the executor. Called once for each function, by the
+	 * first evaluation to reach the threshold.
+	 */
+	void submit(final TieredFunction f)
+	{
+		Runnable compilation = new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				CompiledFunction c;
+				try {
+					c = compiler.compile(f.getFunction(), f.getVariables());
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					return;
+				}
+				f.install(c);
+				compiled.incrementAndGet();
+			}
+		};
+		try {
+			executor.execute(compilation);
+		} catch (RejectedExecutionException e) {
+			failed.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+package cope.interpreter.compiler;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * A function wrapped by a TieredCompiler, evaluated by walking its bound
+ * tree until it has been evaluated often enough to be compiled, and by its
+ * compiled class from then on.
+ *
+ * Every evaluation goes through a single volatile reference to the current
+ * implementation. The tree walker counts its evaluations, and the first to
+ * reach the threshold hands the function to the compiler; when the compiled
+ * class is ready the reference is replaced by it, so compiled evaluations
+ * count nothing at all. The count is not synchronized, so it may lose a few
+ * evaluations made at the same time on several threads, which only delays
+ * compilation slightly. A TieredFunction can be shared between threads.
+ */
+public class TieredFunction implements CompiledFunction
+{
+	private final TieredCompiler compiler;
+	private final Function function;
+	private final String[] variables;
+
+	private final AtomicBoolean promoted = new AtomicBoolean(false);
+	private final CompiledFunction walker;
+	private volatile CompiledFunction current;
+
+	TieredFunction(TieredCompiler compiler, Function f, String...variables) throws Exception
+	{
+		this.compiler = compiler;
+		this.function = f;
+		this.variables = variables.clone();
+
+		final Function bound = f.bind(variables);
+		final int threshold = compiler.getThreshold();
+		walker = new CompiledFunction()
+		{
+			private int invocations = 0;
+
+			@Override
+			public double applyAsDouble(double[] vars)
+			{
+				if (++invocations >= threshold && !promoted.get())
+					promote();
+				return bound.evaluate(vars);
+			}
+		};
+		current = walker;
+	}
+
+	/**
+	 * @param vars - The value of each variable, in the order given to
+	 * TieredCompiler.wrap.
+	 * @return The value of the function.
+	 */
+	@Override
+	public double applyAsDouble(double[] vars)
+	{
+		return current.applyAsDouble(vars);
+	}
+
+	/**
+	 * Hands the function to the compiler, unless it already has been.
+	 */
+	void promote()
+	{
+		if (promoted.compareAndSet(false, true))
+			compiler.submit(this);
+	}
+
+	/**
+	 * Replaces the tree walker with the compiled function.
+	 */
+	void install(CompiledFunction compiled)
+	{
+		current = compiled;
+	}
+
+	/**
+	 * @return Whether evaluations now call the compiled class.
+	 */
+	public boolean isCompiled() { return current != walker; }
+
+	public Function getFunction() { return function; }
+
+	public String[] getVariables() { return variables.clone(); }
+}
@@ -0,0 +1,264 @@
+package cope.interpreter.evaluation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import cope.interpreter.compiler.Opcodes;
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.UnaryFunction;
+
+/**
+ * Samples a function of one variable for plotting, placing points where the
+ * function bends rather than evenly. The range is first sampled on a coarse
+ * grid, and the function is evaluated at the midpoint of every segment
+ * between samples. How far the midpoint lies from the straight line joining
+ * the ends of its segment measures how badly the line misses the curve
+ * there, and the segment with the largest visible error, its distance from
+ * the line times its width, is split in two until every segment is within
+ * the tolerance or the budget of evaluations is spent. Values far above or
+ * below the plot are clipped when measuring, so the steep sides of a pole
+ * are not refined beyond what can be seen.
+ *
+ * A segment that stays wrong down to the smallest width it may be split to
+ * contains a jump or a pole. If the function has an instruction that can be
+ * discontinuous, a division, remainder, power, tan, floor or ceil, the line
+ * is broken there; otherwise it is drawn as the steep curve it must be.
+ * Points where the function is undefined break the line as well.
+ */
+public class AdaptiveSampler
+{
+	/**
+	 * The smallest segment, as a fraction of the range, that is split. This
+	 * is far narrower than a pixel, so breaking the line across a segment
+	 * this narrow looks no different from finding the jump exactly.
+	 */
+	private static final double MIN_WIDTH = 1e-6;
+	/** The most segments in the initial grid. */
+	private static final int MAX_INITIAL_SEGMENTS = 64;
+
+	private Function function;
+	private boolean discontinuous;
+	private double tolerance = 1e-3;
+	private double clipMin, clipMax;
+
+	/**
+	 * @param f - The function to be sampled.
+	 * @param variable - The variable of f.
+	 * @throws Exception if f has another variable.
+	 */
+	public AdaptiveSampler(Function f, String variable) throws Exception
+	{
+		this.function = f.bind(variable);
+		this.discontinuous = mayBeDiscontinuous(f);
+	}
+
+	/**
+	 * @param tolerance - The largest distance between the line and the curve,
+	 * as a fraction of the height of the plot. The default is 0.001, under a
+	 * pixel for plots up to a thousand pixels high.
+	 */
+	public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+
+	private static boolean mayBeDiscontinuous(Function f)
+	{
+		if (f instanceof BinaryFunction)
+		{
+			int op = Opcodes.of(((BinaryFunction) f).getInstruction());
+			if (op < 0 || op == Opcodes.DIVIDE || op == Opcodes.MODULO || op == Opcodes.POWER)
+				return true;
+		}
+		else if (f instanceof UnaryFunction)
+		{
+			int op = Opcodes.of(((UnaryFunction) f).getInstruction());
+			if (op < 0 || op == Opcodes.TAN || op == Opcodes.FLOOR || op == Opcodes.CEIL)
+				return true;
+		}
+		for (int i = 0; i < f.getChildCount(); i++)
+			if (mayBeDiscontinuous(f.getChild(i)))
+				return true;
+		return false;
+	}
+
+	/**
+	 * @param min - The least value of the variable.
+	 * @param max - The greatest value of the variable.
+	 * @param budget - The most times the function may be evaluated, and so
+	 * the most points in the line. At least 3.
+	 * @return The line through the sampled points.
+	 */
+	public Polyline sample(double min, double max, int budget)
+	{
+		if (budget < 3)
+			throw new IllegalArgumentException("A budget of " + budget + " evaluations is too small to plot with.");
+		double[] point = new double[1];
+		int segments = Math.max(1, Math.min(MAX_INITIAL_SEGMENTS, (budget - 1) / 8));
+
+		ArrayList<Segment> initial = new ArrayList<Segment>();
+		double step = (max - min) / segments;
+		double a = min, fa = evaluate(point, a);
+		for (int i = 1; i <= segments; i++)
+		{
+			double b = i == segments ? max : min + i * step;
+			double fb = evaluate(point, b);
+			double m = (a + b) / 2;
+			initial.add(new Segment(a, fa, m, evaluate(point, m), b, fb));
+			a = b;
+			fa = fb;
+		}
+		int evaluations = 2 * segments + 1;
+
+		double[] view = estimateView(initial);
+		double height = view[1] - view[0];
+		double maxError = tolerance * height;
+		double minWidth = MIN_WIDTH * (max - min);
+		// values far outside the view are drawn off the plot, however far out they are
+		clipMin = view[0] - height;
+		clipMax = view[1] + height;
+
+		PriorityQueue<Segment> queue = new PriorityQueue<Segment>(initial.size(), worstFirst);
+		ArrayList<Segment> done = new ArrayList<Segment>();
+		for (Segment s : initial)
+			prioritise(s, height, max - min, maxError, queue, done);
+
+		while (!queue.isEmpty() && evaluations + 2 <= budget)
+		{
+			Segment s = queue.poll();
+			if (s.b - s.a <= minWidth)
+			{
+				s.broken = discontinuous && !Double.isNaN(s.fa) && !Double.isNaN(s.fb)
+						&& Math.abs(clip(s.fb) - clip(s.fa)) > maxError;
+				done.add(s);
+				continue;
+			}
+			double lm = (s.a + s.m) / 2, rm = (s.m + s.b) / 2;
+			Segment left = new Segment(s.a, s.fa, lm, evaluate(point, lm), s.m, s.fm);
+			Segment right = new Segment(s.m, s.fm, rm, evaluate(point, rm), s.b, s.fb);
+			evaluations += 2;
+			prioritise(left, height, max - min, maxError, queue, done);
+			prioritise(right, height, max - min, maxError, queue, done);
+		}
+		done.addAll(queue);
+		return toPolyline(done, evaluations);
+	}
+
+	private double evaluate(double[] point, double x)
+	{
+		point[0] = x;
+		return function.evaluate(point);
+	}
+
+	/**
+	 * Queues s to be split if the line misses the curve by more than maxError
+	 * over it, and otherwise sets it aside as done.
+	 */
+	private void prioritise(Segment s, double height, double range, double maxError,
+			PriorityQueue<Segment> queue, ArrayList<Segment> done)
+	{
+		double error = Math.abs(clip(s.fm) - (clip(s.fa) + clip(s.fb)) / 2);
+		if (Double.isNaN(error))
+			// a segment that is partly undefined is split to find where
+			error = Double.isNaN(s.fa) && Double.isNaN(s.fm) && Double.isNaN(s.fb) ? 0 : Double.POSITIVE_INFINITY;
+		if (error <= maxError) {
+			done.add(s);
+			return;
+		}
+		// an error larger than the plot looks no worse than one as large
+		s.priority = Math.min(error / height, 1) * (s.b - s.a) / range;
+		queue.add(s);
+	}
+
+	private double clip(double y)
+	{
+		return y < clipMin ? clipMin : y > clipMax ? clipMax : y;
+	}
+
+	/**
+	 * @return A robust estimate of the range of values shown by the plot,
+	 * around the middle of the sampled values, so that a pole does not
+	 * flatten the rest.
+	 */
+	private double[] estimateView(ArrayList<Segment> segments)
+	{
+		double[] values = new double[2 * segments.size() + 1];
+		int n = 0;
+		for (Segment s : segments)
+		{
+			for (double v : new double[] { s.fa, s.fm })
+				if (!Double.isNaN(v) && !Double.isInfinite(v))
+					values[n++] = v;
+		}
+		Segment last = segments.get(segments.size() - 1);
+		if (!Double.isNaN(last.fb) && !Double.isInfinite(last.fb))
+			values[n++] = last.fb;
+		if (n == 0)
+			return new double[] { -1, 1 };
+		Arrays.sort(values, 0, n);
+		double low = values[(int) (0.1 * (n - 1))], high = values[(int) (0.9 * (n - 1))];
+		if (high == low) {
+			low = values[0];
+			high = values[n - 1];
+		}
+		if (high == low) {
+			double margin = Math.max(Math.abs(low), 1);
+			return new double[] { low - margin, high + margin };
+		}
+		double margin = (high - low) / 8;
+		return new double[] { low - margin, high + margin };
+	}
+
+	private Polyline toPolyline(ArrayList<Segment> segments, int evaluations)
+	{
+		Collections.sort(segments, leftToRight);
+		int size = 2 * segments.size() + 1;
+		double[] x = new double[size], y = new double[size];
+		int n = 0;
+		for (Segment s : segments)
+		{
+			x[n] = s.a;
+			y[n++] = s.fa;
+			x[n] = s.m;
+			y[n++] = s.broken ? Double.NaN : s.fm;
+		}
+		Segment last = segments.get(segments.size() - 1);
+		x[n] = last.b;
+		y[n] = last.fb;
+		return new Polyline(x, y, evaluations);
+	}
+
+	private static class Segment
+	{
+		private double a, fa, m, fm, b, fb;
+		private double priority;
+		private boolean broken = false;
+
+		Segment(double a, double fa, double m, double fm, double b, double fb)
+		{
+			this.a = a;
+			this.fa = fa;
+			this.m = m;
+			this.fm = fm;
+			this.b = b;
+			this.fb = fb;
+		}
+	}
+
+	private static final Comparator<Segment> worstFirst = new Comparator<Segment>()
+	{
+		@Override
+		public int compare(Segment s0, Segment s1) {
+			return Double.compare(s1.priority, s0.priority);
+		}
+	};
+
+	private static final Comparator<Segment> leftToRight = new Comparator<Segment>()
+	{
+		@Override
+		public int compare(Segment s0, Segment s1) {
+			return Double.compare(s0.a, s1.a);
+		}
+	};
+}
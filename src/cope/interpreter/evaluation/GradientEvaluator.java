@@ -0,0 +1,161 @@
+package cope.interpreter.evaluation;
+
+import java.util.Arrays;
+
+import cope.interpreter.compiler.CompactFunction;
+import cope.interpreter.compiler.Opcodes;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Evaluates a function and its gradient together by reverse-mode automatic
+ * differentiation. The function is recorded once as a CompactFunction, whose
+ * nodes in postorder are the tape; each evaluation is then a forward sweep
+ * over the tape computing the value of every node, and a backward sweep
+ * accumulating the derivative of the function with respect to every node.
+ * The cost of the whole gradient is a small multiple of the cost of
+ * evaluating the function, however many variables it has, and no derivative
+ * trees are built.
+ *
+ * The tape's working arrays are reused between evaluations, so an evaluator
+ * allocates nothing per point but must not be shared between threads.
+ *
+ * At points where an instruction is not differentiable the derivative of
+ * one side is used: floor and ceil are taken to be flat, abs to have slope 0
+ * at 0, and a%b to have slope 1 in a.
+ */
+public class GradientEvaluator
+{
+	private final CompactFunction tape;
+	private final int size, dimensions;
+
+	private double[] values, adjoints;
+
+	/**
+	 * @param f - The function to be differentiated.
+	 * @param variables - The variables of f, in the order of the components
+	 * of points and gradients.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones, or a variable that is not in variables.
+	 */
+	public GradientEvaluator(Function f, String...variables) throws Exception
+	{
+		tape = new CompactFunction(f, variables);
+		size = tape.getSize();
+		dimensions = variables.length;
+
+		values = new double[size];
+		adjoints = new double[size];
+	}
+
+	/**
+	 * @return The number of distinct nodes recorded on the tape.
+	 */
+	public int getTapeSize() { return size; }
+
+	/**
+	 * Allocates a new array for the gradient; see evaluate(double[], double[]).
+	 */
+	public double[] gradient(double[] point)
+	{
+		double[] gradient = new double[dimensions];
+		evaluate(point, gradient);
+		return gradient;
+	}
+
+	/**
+	 * Evaluates the function and its gradient at a point.
+	 * @param point - The value of each variable.
+	 * @param gradient - The array the partial derivative with respect to each
+	 * variable is written to.
+	 * @return The value of the function at point.
+	 */
+	public double evaluate(double[] point, double[] gradient)
+	{
+		double value = tape.evaluate(point, values);
+		backward(gradient);
+		return value;
+	}
+
+	private void backward(double[] gradient)
+	{
+		Arrays.fill(gradient, 0, dimensions, 0);
+		Arrays.fill(adjoints, 0, size, 0);
+		adjoints[size - 1] = 1;
+
+		for (int i = size - 1; i >= 0; i--)
+		{
+			double a = adjoints[i];
+			if (a == 0)
+				continue;
+			int l = tape.getLeft(i), r = tape.getRight(i);
+			double v = values[i];
+			switch (tape.getOp(i))
+			{
+			case Opcodes.CONSTANT:
+				break;
+			case Opcodes.VARIABLE:
+				// pi and e, when not variables of the tape, have no component
+				if (l < dimensions)
+					gradient[l] += a;
+				break;
+			case Opcodes.ADD:
+				adjoints[l] += a;
+				adjoints[r] += a;
+				break;
+			case Opcodes.SUBTRACT:
+				adjoints[l] += a;
+				adjoints[r] -= a;
+				break;
+			case Opcodes.MULTIPLY:
+				adjoints[l] += a * values[r];
+				adjoints[r] += a * values[l];
+				break;
+			case Opcodes.DIVIDE:
+				adjoints[l] += a / values[r];
+				adjoints[r] -= a * v / values[r];
+				break;
+			case Opcodes.MODULO:
+				adjoints[l] += a;
+				adjoints[r] -= a * (long) (values[l] / values[r]);
+				break;
+			case Opcodes.POWER:
+				adjoints[l] += a * values[r] * Math.pow(values[l], values[r] - 1);
+				// a constant exponent needs no adjoint, and ln of the base may not exist
+				if (!tape.isConstant(r))
+					adjoints[r] += a * v * Math.log(values[l]);
+				break;
+			case Opcodes.SIN:
+				adjoints[l] += a * Math.cos(values[l]);
+				break;
+			case Opcodes.COS:
+				adjoints[l] -= a * Math.sin(values[l]);
+				break;
+			case Opcodes.TAN:
+				double c = Math.cos(values[l]);
+				adjoints[l] += a / (c * c);
+				break;
+			case Opcodes.ABS:
+				adjoints[l] += a * Math.signum(values[l]);
+				break;
+			case Opcodes.SINH:
+				adjoints[l] += a * Math.cosh(values[l]);
+				break;
+			case Opcodes.COSH:
+				adjoints[l] += a * Math.sinh(values[l]);
+				break;
+			case Opcodes.TANH:
+				adjoints[l] += a * (1 - v * v);
+				break;
+			case Opcodes.FLOOR:
+			case Opcodes.CEIL:
+				break;
+			case Opcodes.SQRT:
+				adjoints[l] += a * 0.5 / v;
+				break;
+			case Opcodes.LN:
+				adjoints[l] += a / values[l];
+				break;
+			}
+		}
+	}
+}
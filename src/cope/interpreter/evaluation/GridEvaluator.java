@@ -0,0 +1,154 @@
+package cope.interpreter.evaluation;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * Samples a function over a rectilinear grid, splitting the grid between
+ * the threads of a ForkJoinPool. The grid is given as one axis of
+ * coordinates per variable, and the values are written in row-major order,
+ * so the last axis varies fastest.
+ *
+ * Every point is evaluated independently of the others, so the result is
+ * the same whatever the parallelism of the pool.
+ */
+public class GridEvaluator
+{
+	/** Number of points below which a task is no longer split. */
+	private static final int CHUNK_SIZE = 4096;
+
+	private Function function;
+	private int dimensions;
+	private ForkJoinPool pool;
+
+	public GridEvaluator(Function f, String...variables) throws Exception
+	{
+		this(f, ForkJoinPool.commonPool(), variables);
+	}
+
+	/**
+	 * @param f - The function to be sampled.
+	 * @param pool - The pool the work is split across.
+	 * @param variables - The variables of f, in the order of the grid's axes.
+	 * @throws Exception if f has a variable that is not in variables.
+	 */
+	public GridEvaluator(Function f, ForkJoinPool pool, String...variables) throws Exception
+	{
+		this.function = f.bind(variables);
+		this.dimensions = variables.length;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return count evenly spaced values from min to max inclusive.
+	 */
+	public static double[] linspace(double min, double max, int count)
+	{
+		double[] axis = new double[count];
+		if (count == 0)
+			return axis;
+		if (count == 1) {
+			axis[0] = min;
+			return axis;
+		}
+		double step = (max - min) / (count - 1);
+		for (int i = 0; i < count; i++)
+			axis[i] = min + i * step;
+		axis[count - 1] = max;
+		return axis;
+	}
+
+	/**
+	 * @param axes - The coordinates of the grid along each variable.
+	 * @return The values of the function at every point of the grid.
+	 */
+	public double[] evaluate(double[]...axes)
+	{
+		double[] out = new double[size(axes)];
+		evaluate(axes, out);
+		return out;
+	}
+
+	/**
+	 * Samples the function at every point of the grid into out, where the
+	 * value at grid index (i0, i1, ..., in) is stored at
+	 * out[((i0*len1 + i1)*len2 + ...)*lenn + in].
+	 * @param axes - The coordinates of the grid along each variable.
+	 * @param out - Array of at least as many elements as the grid has points.
+	 */
+	public void evaluate(double[][] axes, double[] out)
+	{
+		if (axes.length != dimensions)
+			throw new IllegalArgumentException("Expected " + dimensions + " axes but was given " + axes.length);
+		int size = size(axes);
+		if (out.length < size)
+			throw new IllegalArgumentException("Output holds " + out.length + " values but the grid has " + size + " points");
+		// an empty axis leaves no points, and no length to divide indices by
+		if (size == 0)
+			return;
+		pool.invoke(new GridTask(axes, out, 0, size));
+	}
+
+	private int size(double[][] axes)
+	{
+		long size = 1;
+		for (double[] axis : axes)
+			size *= axis.length;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Grid of " + size + " points is too large");
+		return (int) size;
+	}
+
+	private class GridTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		private double[][] axes;
+		private double[] out;
+		private int from, to;
+
+		GridTask(double[][] axes, double[] out, int from, int to)
+		{
+			this.axes = axes;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (to - from > CHUNK_SIZE) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new GridTask(axes, out, from, mid), new GridTask(axes, out, mid, to));
+				return;
+			}
+
+			int n = to - from;
+			double[][] columns = new double[dimensions][n];
+			int[] index = new int[dimensions];
+			int rest = from;
+			for (int d = dimensions - 1; d >= 0; d--) {
+				index[d] = rest % axes[d].length;
+				rest /= axes[d].length;
+			}
+
+			for (int i = 0; i < n; i++)
+			{
+				for (int d = 0; d < dimensions; d++)
+					columns[d][i] = axes[d][index[d]];
+				for (int d = dimensions - 1; d >= 0; d--) {
+					if (++index[d] < axes[d].length)
+						break;
+					index[d] = 0;
+				}
+			}
+
+			double[] values = new double[n];
+			function.evaluateBatch(columns, values);
+			System.arraycopy(values, 0, out, from, n);
+		}
+	}
+}
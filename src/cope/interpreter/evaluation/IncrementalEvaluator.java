@@ -0,0 +1,133 @@
+package cope.interpreter.evaluation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import cope.interpreter.nodes.BatchKernels;
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+import cope.interpreter.nodes.FunctionalVariable;
+import cope.interpreter.nodes.UnaryFunction;
+
+/**
+ * Evaluates successive versions of a function over the same sample grid,
+ * such as the trees an IncrementalParser produces as a formula is edited,
+ * remembering the values of every subtree over the grid. A subtree equal to
+ * one of the last tree, which after an incremental parse is usually the very
+ * same object, takes its values from there, so only the nodes an edit has
+ * changed, on the path from the edit to the root, are evaluated again.
+ *
+ * Values are only remembered for the subtrees of the last tree evaluated,
+ * one array the size of the grid for each distinct subtree. An evaluator
+ * must not be shared between threads.
+ */
+public class IncrementalEvaluator
+{
+	private String[] variables;
+	private double[][] columns;
+	private int points;
+
+	private HashMap<Function, double[]> values = new HashMap<Function, double[]>();
+	private int evaluated = 0;
+
+	/**
+	 * @param columns - The value of each variable at each point of the grid,
+	 * indexed by variable and then by point.
+	 * @param variables - The variables of the functions, in the order of
+	 * columns.
+	 */
+	public IncrementalEvaluator(double[][] columns, String...variables)
+	{
+		this.variables = variables.clone();
+		setGrid(columns);
+	}
+
+	/**
+	 * Moves the evaluator to a new grid, forgetting the values on the old.
+	 * @param columns - The value of each variable at each point of the grid.
+	 */
+	public void setGrid(double[][] columns)
+	{
+		if (columns.length != variables.length)
+			throw new IllegalArgumentException("Expected a column for each of " + Arrays.toString(variables));
+		this.columns = columns.clone();
+		this.points = columns.length == 0 ? 1 : columns[0].length;
+		values.clear();
+	}
+
+	public int getPoints() { return points; }
+
+	/**
+	 * @return The number of nodes whose values were computed by the last
+	 * evaluation, rather than remembered from the one before.
+	 */
+	public int getEvaluated() { return evaluated; }
+
+	/**
+	 * @param f - The function to be evaluated.
+	 * @return The value of f at each point of the grid. The array is the one
+	 * the evaluator remembers, or if f is a variable its column of the grid,
+	 * so must not be changed.
+	 * @throws Exception if f has a variable that is not one of the
+	 * evaluator's, or a node of an unknown type.
+	 */
+	public double[] evaluate(Function f) throws Exception
+	{
+		HashMap<Function, double[]> next = new HashMap<Function, double[]>();
+		evaluated = 0;
+		double[] result = evaluate(f, next);
+		values = next;
+		return result;
+	}
+
+	private double[] evaluate(Function f, HashMap<Function, double[]> next) throws Exception
+	{
+		double[] result = next.get(f);
+		if (result != null)
+			return result;
+		result = values.get(f);
+		if (result == null)
+		{
+			result = compute(f, next);
+			evaluated++;
+		}
+		next.put(f, result);
+		return result;
+	}
+
+	private double[] compute(Function f, HashMap<Function, double[]> next) throws Exception
+	{
+		double[] result = new double[points];
+		if (f instanceof Constant)
+			Arrays.fill(result, ((Constant) f).getDoubleValue());
+		else if (f instanceof FunctionalVariable)
+		{
+			String name = ((FunctionalVariable) f).getName();
+			int slot = Arrays.asList(variables).indexOf(name);
+			if (slot >= 0)
+				return columns[slot];
+			else if (name.equals(Function.PI.getName()))
+				Arrays.fill(result, Function.PI.getDouble());
+			else if (name.equals(Function.E.getName()))
+				Arrays.fill(result, Function.E.getDouble());
+			else throw new Exception("Cannot evaluate over " + Arrays.toString(variables)
+					+ ": " + name + " is not one of them.");
+		}
+		else if (f instanceof UnaryFunction)
+		{
+			UnaryFunction u = (UnaryFunction) f;
+			System.arraycopy(evaluate(u.getChild(), next), 0, result, 0, points);
+			BatchKernels.apply(u.getInstruction(), result, points);
+		}
+		else if (f instanceof BinaryFunction)
+		{
+			BinaryFunction b = (BinaryFunction) f;
+			double[] left = evaluate(b.getLeftChild(), next);
+			double[] right = evaluate(b.getRightChild(), next);
+			BatchKernels.apply(b.getInstruction(), left, right, result, points);
+		}
+		else throw new Exception("Cannot evaluate node of type " + f.getType());
+		return result;
+	}
+}
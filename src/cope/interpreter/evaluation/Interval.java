@@ -0,0 +1,71 @@
+package cope.interpreter.evaluation;
+
+/**
+ * A closed interval of real numbers, which may be unbounded at either end or
+ * empty. Intervals are immutable.
+ */
+public class Interval
+{
+	/** The interval containing no numbers. */
+	public static final Interval EMPTY = new Interval(Double.NaN, Double.NaN);
+	/** The interval containing every number. */
+	public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+	private final double lower, upper;
+
+	/**
+	 * @param lower - The least number in the interval.
+	 * @param upper - The greatest number in the interval.
+	 * @throws IllegalArgumentException if lower is greater than upper.
+	 */
+	public Interval(double lower, double upper)
+	{
+		if (lower > upper)
+			throw new IllegalArgumentException("Empty interval [" + lower + ", " + upper + "]");
+		this.lower = lower;
+		this.upper = upper;
+	}
+
+	/**
+	 * Creates the interval containing only x.
+	 */
+	public Interval(double x)
+	{
+		this(x, x);
+	}
+
+	public double getLower() { return lower; }
+	public double getUpper() { return upper; }
+
+	public boolean isEmpty() { return Double.isNaN(lower); }
+
+	public double getWidth() { return isEmpty() ? 0 : upper - lower; }
+	public double getMidpoint() { return lower / 2 + upper / 2; }
+
+	public boolean contains(double x) { return lower <= x && x <= upper; }
+
+	@Override
+	public String toString()
+	{
+		if (isEmpty())
+			return "[]";
+		return "[" + lower + ", " + upper + "]";
+	}
+
+	@Override
+	public boolean equals(Object o)
+	{
+		if (o instanceof Interval) {
+			Interval i = (Interval) o;
+			return Double.compare(i.lower, lower) == 0 && Double.compare(i.upper, upper) == 0;
+		}
+		return false;
+	}
+
+	@Override
+	public int hashCode()
+	{
+		long bits = 31 * Double.doubleToLongBits(lower) + Double.doubleToLongBits(upper);
+		return (int) (bits ^ (bits >>> 32));
+	}
+}
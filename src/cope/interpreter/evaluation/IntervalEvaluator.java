@@ -0,0 +1,378 @@
+package cope.interpreter.evaluation;
+
+import cope.interpreter.compiler.EvaluationPlan;
+import cope.interpreter.compiler.Opcodes;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Bounds the values of a function over a box of variable ranges by interval
+ * arithmetic. Every operation of the function is applied to the interval of
+ * values its operands can take, giving an interval that contains every value
+ * of the function in the box, so a caller can rule out a whole region, for
+ * instance one whose interval does not contain 0 when finding roots, without
+ * evaluating a single point in it.
+ *
+ * The bounds are guaranteed but not in general tight: an expression such as
+ * x - x is bounded as if its two operands were independent. Each bound is
+ * moved outwards by as many units in the last place as the error of the
+ * operation that computed it, so rounding cannot make it too narrow. Values
+ * that are undefined are not bounded: the interval of sqrt(x) for x in
+ * [-1, 4] is [0, 2], and an operation with no defined values in the box
+ * gives the empty interval.
+ *
+ * The function is first flattened into an EvaluationPlan, so only the
+ * standard instructions are supported. An evaluator reuses its working
+ * arrays between evaluations, so must not be shared between threads.
+ */
+public class IntervalEvaluator
+{
+	private static final double HALF_PI = Math.PI / 2;
+	private static final double TWO_PI = 2 * Math.PI;
+	/** Beyond this the period of sin, cos and tan cannot be located reliably. */
+	private static final double MAX_PERIODIC = 1e9;
+
+	private EvaluationPlan plan;
+	private int dimensions;
+	private double[] lo, hi;
+
+	/**
+	 * @param f - The function to be bounded.
+	 * @param variables - The variables of f, in the order of the components
+	 * of boxes.
+	 * @throws Exception if f contains an instruction other than the standard
+	 * ones, or a variable that is not in variables.
+	 */
+	public IntervalEvaluator(Function f, String...variables) throws Exception
+	{
+		this.plan = new EvaluationPlan(f, variables);
+		this.dimensions = variables.length;
+		lo = new double[plan.getSize()];
+		hi = new double[plan.getSize()];
+	}
+
+	/**
+	 * @param box - The range of each variable.
+	 * @return An interval containing the value of the function at every point
+	 * of the box.
+	 */
+	public Interval evaluate(Interval...box)
+	{
+		double[] lower = new double[dimensions], upper = new double[dimensions];
+		for (int i = 0; i < dimensions; i++) {
+			lower[i] = box[i].getLower();
+			upper[i] = box[i].getUpper();
+		}
+		return evaluate(lower, upper);
+	}
+
+	/**
+	 * @param lower - The least value of each variable.
+	 * @param upper - The greatest value of each variable.
+	 * @return An interval containing the value of the function at every point
+	 * of the box.
+	 */
+	public Interval evaluate(double[] lower, double[] upper)
+	{
+		int size = plan.getSize();
+		for (int i = 0; i < size; i++)
+		{
+			int op = plan.getOp(i);
+			if (op == Opcodes.CONSTANT) {
+				lo[i] = hi[i] = plan.getConstant(i);
+				continue;
+			}
+			int l = plan.getLeft(i);
+			if (op == Opcodes.VARIABLE) {
+				lo[i] = lower[l];
+				hi[i] = upper[l];
+				continue;
+			}
+			if (op == Opcodes.POWER && Double.isNaN(lo[l]) && lo[plan.getRight(i)] <= 0 && hi[plan.getRight(i)] >= 0) {
+				// anything to the power 0 is 1, even an undefined value
+				lo[i] = hi[i] = 1;
+				continue;
+			}
+			if (Double.isNaN(lo[l])) {
+				setEmpty(i);
+				continue;
+			}
+			if (Opcodes.isUnary(op)) {
+				unary(i, op, lo[l], hi[l]);
+				continue;
+			}
+			int r = plan.getRight(i);
+			if (Double.isNaN(lo[r]))
+				setEmpty(i);
+			else
+				binary(i, op, lo[l], hi[l], lo[r], hi[r]);
+		}
+		if (Double.isNaN(lo[size - 1]))
+			return Interval.EMPTY;
+		return new Interval(lo[size - 1], hi[size - 1]);
+	}
+
+	/**
+	 * Bounds [a, b] op [c, d].
+	 */
+	private void binary(int i, int op, double a, double b, double c, double d)
+	{
+		switch (op)
+		{
+		case Opcodes.ADD:
+			set(i, a + c, b + d, 1);
+			break;
+		case Opcodes.SUBTRACT:
+			set(i, a - d, b - c, 1);
+			break;
+		case Opcodes.MULTIPLY:
+			double ac = mul(a, c), ad = mul(a, d), bc = mul(b, c), bd = mul(b, d);
+			set(i, min(ac, ad, bc, bd), max(ac, ad, bc, bd), 1);
+			break;
+		case Opcodes.DIVIDE:
+			if (c <= 0 && d >= 0)
+				set(i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+			else
+				set(i, min(a / c, a / d, b / c, b / d), max(a / c, a / d, b / c, b / d), 1);
+			break;
+		case Opcodes.MODULO:
+			modulo(i, a, b, c, d);
+			break;
+		case Opcodes.POWER:
+			power(i, a, b, c, d);
+			break;
+		}
+	}
+
+	/**
+	 * Bounds op [a, b].
+	 */
+	private void unary(int i, int op, double a, double b)
+	{
+		switch (op)
+		{
+		case Opcodes.SIN:
+			periodic(i, a, b, Math.sin(a), Math.sin(b), HALF_PI, -HALF_PI);
+			break;
+		case Opcodes.COS:
+			periodic(i, a, b, Math.cos(a), Math.cos(b), 0, Math.PI);
+			break;
+		case Opcodes.TAN:
+			if (b - a >= Math.PI || !isPeriodic(a, b) || containsPeriodPoint(a, b, HALF_PI, Math.PI))
+				set(i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+			else
+				set(i, Math.tan(a), Math.tan(b), 1);
+			break;
+		case Opcodes.ABS:
+			if (a >= 0)
+				set(i, a, b, 0);
+			else if (b <= 0)
+				set(i, -b, -a, 0);
+			else
+				set(i, 0, Math.max(-a, b), 0);
+			break;
+		case Opcodes.SINH:
+			set(i, Math.sinh(a), Math.sinh(b), 3);
+			break;
+		case Opcodes.COSH:
+			if (a >= 0)
+				set(i, Math.cosh(a), Math.cosh(b), 3);
+			else if (b <= 0)
+				set(i, Math.cosh(b), Math.cosh(a), 3);
+			else
+				set(i, 1, Math.max(Math.cosh(a), Math.cosh(b)), 3);
+			lo[i] = Math.max(lo[i], 1);
+			break;
+		case Opcodes.TANH:
+			set(i, Math.tanh(a), Math.tanh(b), 3);
+			lo[i] = Math.max(lo[i], -1);
+			hi[i] = Math.min(hi[i], 1);
+			break;
+		case Opcodes.FLOOR:
+			set(i, Math.floor(a), Math.floor(b), 0);
+			break;
+		case Opcodes.CEIL:
+			set(i, Math.ceil(a), Math.ceil(b), 0);
+			break;
+		case Opcodes.SQRT:
+			if (b < 0)
+				setEmpty(i);
+			else
+				set(i, Math.sqrt(Math.max(a, 0)), Math.sqrt(b), 1);
+			lo[i] = Math.max(lo[i], 0);
+			break;
+		case Opcodes.LN:
+			if (b < 0)
+				setEmpty(i);
+			else
+				set(i, Math.log(Math.max(a, 0)), Math.log(b), 1);
+			break;
+		}
+	}
+
+	/**
+	 * Bounds sin or cos over [a, b], whose maxima are at peak + 2k*pi and
+	 * minima at trough + 2k*pi. Between those points they are monotonic, so
+	 * the bounds are the values at the ends of the interval unless it
+	 * contains one of them.
+	 */
+	private void periodic(int i, double a, double b, double fa, double fb, double peak, double trough)
+	{
+		if (b - a >= TWO_PI || !isPeriodic(a, b)) {
+			set(i, -1, 1, 0);
+			return;
+		}
+		double l = Math.min(fa, fb), h = Math.max(fa, fb);
+		if (containsPeriodPoint(a, b, peak, TWO_PI))
+			h = 1;
+		if (containsPeriodPoint(a, b, trough, TWO_PI))
+			l = -1;
+		set(i, l, h, 1);
+		lo[i] = Math.max(lo[i], -1);
+		hi[i] = Math.min(hi[i], 1);
+	}
+
+	private boolean isPeriodic(double a, double b)
+	{
+		return Math.abs(a) < MAX_PERIODIC && Math.abs(b) < MAX_PERIODIC;
+	}
+
+	/**
+	 * @return Whether [a, b] contains offset + k*period for some integer k.
+	 * Points within rounding error of the ends count as contained.
+	 */
+	private boolean containsPeriodPoint(double a, double b, double offset, double period)
+	{
+		double k = Math.ceil((a - offset) / period - 1e-9);
+		return (offset + k * period - b) / period <= 1e-9;
+	}
+
+	/**
+	 * Bounds [a, b] % [c, d]. The remainder has the sign of the dividend and
+	 * is smaller in magnitude than both operands, and is monotonic in the
+	 * dividend between multiples of a fixed divisor.
+	 */
+	private void modulo(int i, double a, double b, double c, double d)
+	{
+		if (c == d && c != 0 && !Double.isInfinite(a) && !Double.isInfinite(b))
+		{
+			double p = Math.abs(c);
+			if ((a >= 0 && Math.floor(a / p) == Math.floor(b / p))
+					|| (b <= 0 && Math.ceil(a / p) == Math.ceil(b / p))) {
+				set(i, a % p, b % p, 0);
+				return;
+			}
+		}
+		double m = Math.max(Math.abs(c), Math.abs(d));
+		set(i, a >= 0 ? 0 : Math.max(a, -m), b <= 0 ? 0 : Math.min(b, m), 0);
+	}
+
+	/**
+	 * Bounds [a, b]^[c, d] with the semantics of Math.pow. For a fixed
+	 * integer exponent the bounds follow from the parity and sign of the
+	 * exponent. Otherwise the base must be non-negative, where the power is
+	 * monotonic in each operand, so its bounds are among its values at the
+	 * corners of the box.
+	 */
+	private void power(int i, double a, double b, double c, double d)
+	{
+		if (c == d && c == Math.rint(c) && !Double.isInfinite(c))
+		{
+			double pa = Math.pow(a, c), pb = Math.pow(b, c);
+			boolean odd = Math.abs(c % 2) == 1;
+			if (c == 0)
+				set(i, 1, 1, 0);
+			else if (c > 0 && odd)
+				set(i, pa, pb, 1);
+			else if (c > 0)
+			{
+				if (a >= 0)
+					set(i, pa, pb, 1);
+				else if (b <= 0)
+					set(i, pb, pa, 1);
+				else
+					set(i, 0, Math.max(pa, pb), 1);
+			}
+			else if (a > 0)
+				set(i, pb, pa, 1);
+			else if (b < 0)
+			{
+				if (odd)
+					set(i, pb, pa, 1);
+				else
+					set(i, pa, pb, 1);
+			}
+			else if (odd)
+				set(i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+			else
+				set(i, Math.min(pa, pb), Double.POSITIVE_INFINITY, 1);
+			return;
+		}
+		if (a < 0) {
+			// negative bases only have powers at integer exponents
+			set(i, Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 0);
+			return;
+		}
+		double ac = Math.pow(a, c), ad = Math.pow(a, d), bc = Math.pow(b, c), bd = Math.pow(b, d);
+		set(i, min(ac, ad, bc, bd), max(ac, ad, bc, bd), 1);
+	}
+
+	/**
+	 * Sets temporary i to [l, h], moved outwards by the given number of
+	 * units in the last place. An undefined bound is taken to be unbounded.
+	 */
+	private void set(int i, double l, double h, int ulps)
+	{
+		if (Double.isNaN(l))
+			l = Double.NEGATIVE_INFINITY;
+		if (Double.isNaN(h))
+			h = Double.POSITIVE_INFINITY;
+		if (l > h) {
+			l = Double.NEGATIVE_INFINITY;
+			h = Double.POSITIVE_INFINITY;
+		}
+		for (int u = 0; u < ulps; u++) {
+			if (l != Double.NEGATIVE_INFINITY && l != Double.POSITIVE_INFINITY)
+				l = Math.nextDown(l);
+			if (h != Double.POSITIVE_INFINITY && h != Double.NEGATIVE_INFINITY)
+				h = Math.nextUp(h);
+		}
+		lo[i] = l;
+		hi[i] = h;
+	}
+
+	private void setEmpty(int i)
+	{
+		lo[i] = hi[i] = Double.NaN;
+	}
+
+	/**
+	 * @return x*y, taking 0 times an infinite bound to be 0, as the bound
+	 * stands for arbitrarily large finite numbers.
+	 */
+	private static double mul(double x, double y)
+	{
+		return x == 0 || y == 0 ? 0 : x * y;
+	}
+
+	/** @return The least of its arguments, ignoring any that are NaN. */
+	private static double min(double w, double x, double y, double z)
+	{
+		double m = Double.POSITIVE_INFINITY;
+		if (w < m) m = w;
+		if (x < m) m = x;
+		if (y < m) m = y;
+		if (z < m) m = z;
+		return m;
+	}
+
+	/** @return The greatest of its arguments, ignoring any that are NaN. */
+	private static double max(double w, double x, double y, double z)
+	{
+		double m = Double.NEGATIVE_INFINITY;
+		if (w > m) m = w;
+		if (x > m) m = x;
+		if (y > m) m = y;
+		if (z > m) m = z;
+		return m;
+	}
+}
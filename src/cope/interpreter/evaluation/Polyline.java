@@ -0,0 +1,32 @@
+package cope.interpreter.evaluation;
+
+/**
+ * The points of a plotted line in order of x. A point whose y is NaN marks
+ * a break in the line, where the function is undefined or jumps, and the
+ * points either side of it should not be joined.
+ */
+public class Polyline
+{
+	private double[] x, y;
+	private int evaluations;
+
+	public Polyline(double[] x, double[] y, int evaluations)
+	{
+		this.x = x;
+		this.y = y;
+		this.evaluations = evaluations;
+	}
+
+	public int size() { return x.length; }
+	public double getX(int i) { return x[i]; }
+	public double getY(int i) { return y[i]; }
+
+	public double[] getX() { return x.clone(); }
+	public double[] getY() { return y.clone(); }
+
+	/**
+	 * @return The number of times the function was evaluated to draw the
+	 * line.
+	 */
+	public int getEvaluations() { return evaluations; }
+}
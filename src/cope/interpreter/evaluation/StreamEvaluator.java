@@ -0,0 +1,517 @@
+package cope.interpreter.evaluation;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * Evaluates a function at every row of a table of variable values in a file,
+ * streaming the values to another file. The input file is memory-mapped a
+ * window at a time and the rows are evaluated in chunks of CHUNK_SIZE with
+ * Function.evaluateBatch, so the memory used is the same however large the
+ * files are.
+ *
+ * Reading, evaluation and writing each run on their own thread, passing a
+ * fixed number of chunks between them. A thread that gets ahead of the next
+ * one waits for a chunk to be handed back before it goes on, so no stage can
+ * run more than a few chunks ahead of the slowest.
+ *
+ * Two formats are read and written. A CSV file has a header row naming its
+ * columns, then one row of numbers per point; columns that are not variables
+ * of the function are ignored, and quoted fields are not supported. The
+ * values are written one per line. A binary file is a sequence of rows of
+ * little-endian doubles, one per column, with no header; the values are
+ * written as little-endian doubles, one per row.
+ */
+public class StreamEvaluator
+{
+	/** Number of rows evaluated at once. */
+	public static final int CHUNK_SIZE = 4096;
+	/** Number of chunks passed between the threads. */
+	private static final int CHUNKS = 4;
+	/** Number of bytes of the input file mapped at once. */
+	private static final long WINDOW_SIZE = 64L << 20;
+
+	/** Passed along the pipeline after the last chunk. */
+	private static final Chunk END = new Chunk(0);
+
+	private Function function;
+	private String[] variables;
+
+	/**
+	 * Evaluates f as a function of its variables in alphabetical order,
+	 * leaving the standard variables pi and e as constants.
+	 */
+	public StreamEvaluator(Function f) throws Exception
+	{
+		this(f, defaultVariables(f));
+	}
+
+	/**
+	 * @param f - The function to be evaluated.
+	 * @param variables - The variables of f, which are the default columns of
+	 * binary input files.
+	 * @throws Exception if f has a variable that is not in variables.
+	 */
+	public StreamEvaluator(Function f, String...variables) throws Exception
+	{
+		this.variables = variables.clone();
+		this.function = f.bind(variables);
+	}
+
+	private static String[] defaultVariables(Function f)
+	{
+		TreeSet<String> names = new TreeSet<String>(f.getVariables());
+		names.remove(Function.PI.getName());
+		names.remove(Function.E.getName());
+		return names.toArray(new String[names.size()]);
+	}
+
+	public String[] getVariables() { return variables.clone(); }
+
+	/**
+	 * Evaluates a binary file whose columns are the variables of this
+	 * evaluator, in order.
+	 * @return The number of rows evaluated.
+	 */
+	public long evaluateBinary(File in, File out) throws Exception
+	{
+		return evaluateBinary(in, out, variables);
+	}
+
+	/**
+	 * @param in - The binary file of rows to be evaluated.
+	 * @param out - The binary file the values are written to.
+	 * @param columns - The names of the columns of in, in order. Every
+	 * variable must be one of them.
+	 * @return The number of rows evaluated.
+	 * @throws Exception if a variable is not a column, in is not a whole
+	 * number of rows, or either file cannot be used.
+	 */
+	public long evaluateBinary(File in, File out, String...columns) throws Exception
+	{
+		if (columns.length == 0)
+			throw new Exception("A binary file must have at least one column.");
+		BinaryReader reader = new BinaryReader(in, slotsOf(columns));
+		BinaryWriter writer;
+		try {
+			writer = new BinaryWriter(out);
+		} catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+		return run(reader, writer);
+	}
+
+	/**
+	 * @param in - The CSV file of rows to be evaluated.
+	 * @param out - The file the values are written to, one per line.
+	 * @return The number of rows evaluated.
+	 * @throws Exception if a variable is not named in the header, a row cannot
+	 * be read, or either file cannot be used.
+	 */
+	public long evaluateCsv(File in, File out) throws Exception
+	{
+		CsvReader reader = new CsvReader(in);
+		CsvWriter writer;
+		try {
+			writer = new CsvWriter(out);
+		} catch (IOException e) {
+			reader.close();
+			throw e;
+		}
+		return run(reader, writer);
+	}
+
+	/**
+	 * @return The slot of the variable in each column, or -1 for columns
+	 * that are not variables.
+	 */
+	private int[] slotsOf(String[] columns) throws Exception
+	{
+		int[] slots = new int[columns.length];
+		for (int i = 0; i < columns.length; i++)
+			slots[i] = Arrays.asList(variables).indexOf(columns[i]);
+		for (int s = 0; s < variables.length; s++)
+		{
+			int count = 0;
+			for (int slot : slots)
+				if (slot == s)
+					count++;
+			if (count != 1)
+				throw new Exception("The variable " + variables[s] + " must be exactly one of the columns "
+						+ Arrays.toString(columns));
+		}
+		return slots;
+	}
+
+	private long run(final Source source, final Sink sink) throws Exception
+	{
+		final BlockingQueue<Chunk> free = new LinkedBlockingQueue<Chunk>();
+		final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<Chunk>();
+		final BlockingQueue<Chunk> evaluated = new LinkedBlockingQueue<Chunk>();
+		for (int i = 0; i < CHUNKS; i++)
+			free.add(new Chunk(variables.length));
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+		Thread reader = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					while (true)
+					{
+						Chunk c = free.take();
+						c.rows = source.read(c.columns);
+						if (c.rows == 0)
+							break;
+						filled.put(c);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					filled.add(END);
+				}
+			}
+		}, "StreamEvaluator-reader");
+
+		Thread evaluator = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try {
+					Chunk c;
+					while ((c = filled.take()) != END)
+					{
+						c.evaluate(function);
+						evaluated.put(c);
+					}
+				} catch (Throwable t) {
+					failure.compareAndSet(null, t);
+				} finally {
+					evaluated.add(END);
+				}
+			}
+		}, "StreamEvaluator-evaluator");
+
+		long rows = 0;
+		reader.start();
+		evaluator.start();
+		try {
+			Chunk c;
+			while ((c = evaluated.take()) != END)
+			{
+				sink.write(c.out, c.rows);
+				rows += c.rows;
+				free.put(c);
+			}
+			sink.close();
+		} finally {
+			// stops the other threads if this one failed
+			reader.interrupt();
+			evaluator.interrupt();
+			reader.join();
+			evaluator.join();
+			source.close();
+			sink.close();
+		}
+		// an Error on another thread still ends the stream, so must not be taken for its end
+		Throwable t = failure.get();
+		if (t instanceof Exception)
+			throw (Exception) t;
+		else if (t != null)
+			throw new Exception("Cannot evaluate the stream: " + t, t);
+		return rows;
+	}
+
+	/**
+	 * The values of the variables at CHUNK_SIZE rows, and the values of the
+	 * function at them.
+	 */
+	private static class Chunk
+	{
+		private double[][] columns;
+		private double[] out;
+		private int rows;
+
+		Chunk(int variables)
+		{
+			columns = new double[variables][CHUNK_SIZE];
+			out = new double[CHUNK_SIZE];
+		}
+
+		void evaluate(Function f)
+		{
+			if (rows == CHUNK_SIZE) {
+				f.evaluateBatch(columns, out);
+				return;
+			}
+			// evaluateBatch takes the number of rows from the length of out
+			double[][] partial = new double[columns.length][];
+			for (int i = 0; i < columns.length; i++)
+				partial[i] = Arrays.copyOf(columns[i], rows);
+			double[] values = new double[rows];
+			f.evaluateBatch(partial, values);
+			System.arraycopy(values, 0, out, 0, rows);
+		}
+	}
+
+	private static abstract class Source
+	{
+		/**
+		 * Reads up to CHUNK_SIZE rows into columns, indexed by slot and row.
+		 * @return The number of rows read, which is 0 at the end of the input.
+		 */
+		abstract int read(double[][] columns) throws Exception;
+		abstract void close() throws IOException;
+	}
+
+	private static abstract class Sink
+	{
+		abstract void write(double[] values, int n) throws IOException;
+		/** Flushes and closes the output. Closing it again does nothing. */
+		abstract void close() throws IOException;
+	}
+
+	/**
+	 * Maps an input file a window at a time. Mapped windows are released by
+	 * the garbage collector once they have been read.
+	 */
+	private static abstract class MappedSource extends Source
+	{
+		protected FileChannel channel;
+		private long size, position = 0;
+		private long windowSize;
+
+		MappedSource(File file, long windowSize) throws IOException
+		{
+			this.channel = new RandomAccessFile(file, "r").getChannel();
+			this.size = channel.size();
+			this.windowSize = windowSize;
+		}
+
+		/**
+		 * @return The next window of the file, or null at its end.
+		 */
+		protected MappedByteBuffer nextWindow() throws IOException
+		{
+			if (position == size)
+				return null;
+			long length = Math.min(windowSize, size - position);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+			position += length;
+			return window;
+		}
+
+		protected long size() { return size; }
+
+		@Override
+		void close() throws IOException { channel.close(); }
+	}
+
+	private static class BinaryReader extends MappedSource
+	{
+		private int[] slots;
+		private DoubleBuffer window;
+
+		BinaryReader(File file, int[] slots) throws Exception
+		{
+			// windows hold whole rows
+			super(file, Math.max(1, WINDOW_SIZE / (8 * slots.length)) * 8 * slots.length);
+			this.slots = slots;
+			if (size() % (8 * slots.length) != 0) {
+				close();
+				throw new Exception(file + " is not a whole number of rows of " + slots.length + " doubles.");
+			}
+		}
+
+		@Override
+		int read(double[][] columns) throws IOException
+		{
+			int rows = 0;
+			while (rows < CHUNK_SIZE)
+			{
+				if (window == null || !window.hasRemaining()) {
+					MappedByteBuffer next = nextWindow();
+					if (next == null)
+						break;
+					window = next.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+				}
+				for (int slot : slots)
+				{
+					double v = window.get();
+					if (slot >= 0)
+						columns[slot][rows] = v;
+				}
+				rows++;
+			}
+			return rows;
+		}
+	}
+
+	private class CsvReader extends MappedSource
+	{
+		private File file;
+		private MappedByteBuffer window;
+		private byte[] line = new byte[256];
+		private int lineLength;
+		private long lineNumber = 0;
+		private int[] slots;
+
+		CsvReader(File file) throws IOException
+		{
+			super(file, WINDOW_SIZE);
+			this.file = file;
+		}
+
+		@Override
+		int read(double[][] columns) throws Exception
+		{
+			int rows = 0;
+			while (rows < CHUNK_SIZE && nextLine())
+			{
+				if (lineLength == 0)
+					continue;
+				if (slots == null)
+					slots = slotsOf(split());
+				else
+					parseRow(columns, rows++);
+			}
+			if (slots == null)
+				throw new Exception(file + " has no header row.");
+			return rows;
+		}
+
+		/**
+		 * Reads the next line of the file into line, without its terminator.
+		 * @return false if there are no more lines.
+		 */
+		private boolean nextLine() throws IOException
+		{
+			lineLength = 0;
+			boolean read = false;
+			while (true)
+			{
+				if (window == null || !window.hasRemaining()) {
+					window = nextWindow();
+					if (window == null)
+						break;
+				}
+				byte b = window.get();
+				read = true;
+				if (b == '\n')
+					break;
+				if (lineLength == line.length)
+					line = Arrays.copyOf(line, 2 * lineLength);
+				line[lineLength++] = b;
+			}
+			if (lineLength > 0 && line[lineLength - 1] == '\r')
+				lineLength--;
+			lineNumber++;
+			return read;
+		}
+
+		private String[] split()
+		{
+			String[] fields = new String(line, 0, lineLength, StandardCharsets.ISO_8859_1).split(",", -1);
+			for (int i = 0; i < fields.length; i++)
+				fields[i] = fields[i].trim();
+			return fields;
+		}
+
+		private void parseRow(double[][] columns, int row) throws Exception
+		{
+			int column = 0, start = 0;
+			for (int i = 0; i <= lineLength; i++)
+			{
+				if (i < lineLength && line[i] != ',')
+					continue;
+				if (column < slots.length && slots[column] >= 0)
+					columns[slots[column]][row] = parseField(start, i);
+				column++;
+				start = i + 1;
+			}
+			if (column < slots.length)
+				throw new Exception("Line " + lineNumber + " of " + file + " has " + column
+						+ " columns, not " + slots.length + ".");
+		}
+
+		private double parseField(int start, int end) throws Exception
+		{
+			String field = new String(line, start, end - start, StandardCharsets.ISO_8859_1).trim();
+			try {
+				return Double.parseDouble(field);
+			}
+			catch (NumberFormatException e) {
+				throw new Exception("Cannot parse \"" + field + "\" on line " + lineNumber + " of " + file);
+			}
+		}
+	}
+
+	private static class BinaryWriter extends Sink
+	{
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(8 * CHUNK_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+		BinaryWriter(File file) throws IOException
+		{
+			channel = new FileOutputStream(file).getChannel();
+		}
+
+		@Override
+		void write(double[] values, int n) throws IOException
+		{
+			buffer.clear();
+			buffer.asDoubleBuffer().put(values, 0, n);
+			buffer.limit(8 * n);
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+
+		@Override
+		void close() throws IOException { channel.close(); }
+	}
+
+	private static class CsvWriter extends Sink
+	{
+		private Writer writer;
+
+		CsvWriter(File file) throws IOException
+		{
+			writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(file), StandardCharsets.ISO_8859_1), 1 << 16);
+		}
+
+		@Override
+		void write(double[] values, int n) throws IOException
+		{
+			for (int i = 0; i < n; i++)
+			{
+				writer.write(Double.toString(values[i]));
+				writer.write('\n');
+			}
+		}
+
+		@Override
+		void close() throws IOException { writer.close(); }
+	}
+}
@@ -0,0 +1,42 @@
+package cope.interpreter.instrumentation;
+
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import cope.interpreter.nodes.Function;
+
+@Name("cope.interpreter.Compile")
+@Label("Compile")
+@Description("A function tree compiled to bytecode by a FunctionCompiler")
+public class CompileEvent extends PhaseEvent
+{
+	@Label("Input Nodes")
+	long inputNodes;
+
+	@Label("Variables")
+	int variables;
+
+	@Label("Code Length")
+	@DataAmount
+	int codeLength;
+
+	/**
+	 * Ends the event and records it, if it is enabled.
+	 * @param input - The function that was compiled.
+	 * @param variables - The number of variables it was compiled with.
+	 * @param codeLength - The length of the bytecode of the compiled method.
+	 */
+	public void record(Function input, int variables, int codeLength)
+	{
+		end();
+		if (shouldCommit())
+		{
+			this.variables = variables;
+			this.codeLength = codeLength;
+			inputNodes = countNodes(input);
+			commit();
+		}
+	}
+}
@@ -0,0 +1,40 @@
+package cope.interpreter.instrumentation;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import cope.interpreter.nodes.Function;
+
+@Name("cope.interpreter.Differentiate")
+@Label("Differentiate")
+@Description("A function tree differentiated by Function.differentiate")
+public class DifferentiateEvent extends PhaseEvent
+{
+	@Label("Variable")
+	String variable;
+
+	@Label("Input Nodes")
+	long inputNodes;
+
+	@Label("Output Nodes")
+	long outputNodes;
+
+	/**
+	 * Ends the event and records it, if it is enabled.
+	 * @param input - The function that was differentiated.
+	 * @param variable - The name of the variable of differentiation.
+	 * @param result - The derivative.
+	 */
+	public void record(Function input, String variable, Function result)
+	{
+		end();
+		if (shouldCommit())
+		{
+			this.variable = variable;
+			inputNodes = countNodes(input);
+			outputNodes = countNodes(result);
+			commit();
+		}
+	}
+}
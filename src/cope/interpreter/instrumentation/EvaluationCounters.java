@@ -0,0 +1,89 @@
+package cope.interpreter.instrumentation;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Counts how many times each instruction is applied by the nodes of
+ * function trees, across all threads. Counting is enabled by starting the
+ * JVM with -Dcope.interpreter.countEvaluations=true. Otherwise ENABLED is a
+ * constant false, and the JIT removes the counting from evaluation entirely.
+ *
+ * Each instruction has its own LongAdder, which nodes look up once when they
+ * are created, so an evaluation only increments a counter striped across
+ * threads rather than contending on a shared one.
+ */
+public class EvaluationCounters
+{
+	public static final boolean ENABLED = Boolean.getBoolean("cope.interpreter.countEvaluations");
+
+	private static final ConcurrentHashMap<Object, LongAdder> counters = new ConcurrentHashMap<Object, LongAdder>();
+
+	private EvaluationCounters() {}
+
+	/**
+	 * @return The counter of i if counting is enabled, or null.
+	 */
+	public static LongAdder counter(BinaryInstruction i) { return ENABLED ? getCounter(i) : null; }
+	public static LongAdder counter(UnaryInstruction i) { return ENABLED ? getCounter(i) : null; }
+
+	private static LongAdder getCounter(Object instruction)
+	{
+		LongAdder counter = counters.get(instruction);
+		if (counter == null)
+		{
+			LongAdder added = new LongAdder();
+			counter = counters.putIfAbsent(instruction, added);
+			if (counter == null)
+				counter = added;
+		}
+		return counter;
+	}
+
+	/**
+	 * @return The number of times i has been applied since counting started
+	 * or was last reset.
+	 */
+	public static long get(BinaryInstruction i) { return get((Object) i); }
+	public static long get(UnaryInstruction i) { return get((Object) i); }
+
+	private static long get(Object instruction)
+	{
+		LongAdder counter = counters.get(instruction);
+		return counter == null ? 0 : counter.sum();
+	}
+
+	/**
+	 * @return The number of times each instruction has been applied, by the
+	 * string of the instruction. Instructions with the same string are
+	 * counted together.
+	 */
+	public static Map<String, Long> snapshot()
+	{
+		TreeMap<String, Long> counts = new TreeMap<String, Long>();
+		for (Map.Entry<Object, LongAdder> e : counters.entrySet())
+		{
+			Object i = e.getKey();
+			String name = i instanceof BinaryInstruction ? ((BinaryInstruction) i).getString()
+					: ((UnaryInstruction) i).getString();
+			Long count = counts.get(name);
+			counts.put(name, (count == null ? 0 : count) + e.getValue().sum());
+		}
+		return counts;
+	}
+
+	/**
+	 * Sets every count back to 0. Evaluations running at the same time may
+	 * or may not be counted.
+	 */
+	public static void reset()
+	{
+		for (LongAdder counter : counters.values())
+			counter.reset();
+	}
+}
@@ -0,0 +1,35 @@
+package cope.interpreter.instrumentation;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import cope.interpreter.nodes.Function;
+
+@Name("cope.interpreter.Parse")
+@Label("Parse")
+@Description("A string parsed into a function tree by an Interpreter")
+public class ParseEvent extends PhaseEvent
+{
+	@Label("Input Length")
+	int inputLength;
+
+	@Label("Output Nodes")
+	long outputNodes;
+
+	/**
+	 * Ends the event and records it, if it is enabled.
+	 * @param input - The string that was parsed.
+	 * @param result - The tree it was parsed into.
+	 */
+	public void record(String input, Function result)
+	{
+		end();
+		if (shouldCommit())
+		{
+			inputLength = input.length();
+			outputNodes = countNodes(result);
+			commit();
+		}
+	}
+}
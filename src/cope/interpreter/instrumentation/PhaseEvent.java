@@ -0,0 +1,41 @@
+package cope.interpreter.instrumentation;
+
+import java.util.IdentityHashMap;
+
+import jdk.jfr.Category;
+
+import cope.interpreter.nodes.Function;
+
+/**
+ * A JDK Flight Recorder event timing one phase of the interpreter's work on
+ * a function. Events are only recorded while a recording with them enabled
+ * is running, for instance one started with
+ * -XX:StartFlightRecording:settings=profile; otherwise creating, beginning
+ * and recording an event does nothing, and the JIT removes it entirely.
+ * The sizes of the trees are only counted when an event is recorded.
+ */
+@Category("Cope Interpreter")
+public abstract class PhaseEvent extends jdk.jfr.Event
+{
+	/**
+	 * @return The number of nodes in the tree of f, counting a subtree
+	 * shared between several parents once for each of them, as evaluating
+	 * the tree does.
+	 */
+	static long countNodes(Function f)
+	{
+		return countNodes(f, new IdentityHashMap<Function, Long>());
+	}
+
+	private static long countNodes(Function f, IdentityHashMap<Function, Long> counted)
+	{
+		Long count = counted.get(f);
+		if (count != null)
+			return count;
+		long c = 1;
+		for (int i = 0; i < f.getChildCount(); i++)
+			c += countNodes(f.getChild(i), counted);
+		counted.put(f, c);
+		return c;
+	}
+}
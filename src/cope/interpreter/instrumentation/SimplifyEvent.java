@@ -0,0 +1,35 @@
+package cope.interpreter.instrumentation;
+
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import cope.interpreter.nodes.Function;
+
+@Name("cope.interpreter.Simplify")
+@Label("Simplify")
+@Description("A function tree simplified by Function.simplify")
+public class SimplifyEvent extends PhaseEvent
+{
+	@Label("Input Nodes")
+	long inputNodes;
+
+	@Label("Output Nodes")
+	long outputNodes;
+
+	/**
+	 * Ends the event and records it, if it is enabled.
+	 * @param input - The function that was simplified.
+	 * @param result - The simplified function.
+	 */
+	public void record(Function input, Function result)
+	{
+		end();
+		if (shouldCommit())
+		{
+			inputNodes = countNodes(input);
+			outputNodes = countNodes(result);
+			commit();
+		}
+	}
+}
@@ -0,0 +1,67 @@
+package cope.interpreter.nodes;
+
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Column-at-a-time loops used by Function.evaluateBatch. Each standard
+ * instruction has its own loop with the operation written out directly,
+ * which the JIT can unroll and, for the arithmetic operations, compile to
+ * SIMD instructions. Other instructions fall back to calling evaluate for
+ * every element.
+ */
+public class BatchKernels
+{
+	/**
+	 * Sets dest[i] = a[i] op b[i] for the first n elements. dest may be the
+	 * same array as a or b.
+	 */
+	public static void apply(BinaryInstruction op, double[] a, double[] b, double[] dest, int n)
+	{
+		if (op == BinaryFunction.addition)
+			for (int i = 0; i < n; i++) dest[i] = a[i] + b[i];
+		else if (op == BinaryFunction.subtraction)
+			for (int i = 0; i < n; i++) dest[i] = a[i] - b[i];
+		else if (op == BinaryFunction.multiplication)
+			for (int i = 0; i < n; i++) dest[i] = a[i] * b[i];
+		else if (op == BinaryFunction.division)
+			for (int i = 0; i < n; i++) dest[i] = a[i] / b[i];
+		else if (op == BinaryFunction.modulo)
+			for (int i = 0; i < n; i++) dest[i] = a[i] % b[i];
+		else if (op == BinaryFunction.exponentiation)
+			for (int i = 0; i < n; i++) dest[i] = Math.pow(a[i], b[i]);
+		else
+			for (int i = 0; i < n; i++) dest[i] = op.evaluateDouble(a[i], b[i]);
+	}
+
+	/**
+	 * Sets data[i] = op(data[i]) for the first n elements.
+	 */
+	public static void apply(UnaryInstruction op, double[] data, int n)
+	{
+		if (op == UnaryFunction.sin)
+			for (int i = 0; i < n; i++) data[i] = Math.sin(data[i]);
+		else if (op == UnaryFunction.cos)
+			for (int i = 0; i < n; i++) data[i] = Math.cos(data[i]);
+		else if (op == UnaryFunction.tan)
+			for (int i = 0; i < n; i++) data[i] = Math.tan(data[i]);
+		else if (op == UnaryFunction.abs)
+			for (int i = 0; i < n; i++) data[i] = Math.abs(data[i]);
+		else if (op == UnaryFunction.sinh)
+			for (int i = 0; i < n; i++) data[i] = Math.sinh(data[i]);
+		else if (op == UnaryFunction.cosh)
+			for (int i = 0; i < n; i++) data[i] = Math.cosh(data[i]);
+		else if (op == UnaryFunction.tanh)
+			for (int i = 0; i < n; i++) data[i] = Math.tanh(data[i]);
+		else if (op == UnaryFunction.floor)
+			for (int i = 0; i < n; i++) data[i] = Math.floor(data[i]);
+		else if (op == UnaryFunction.ceil)
+			for (int i = 0; i < n; i++) data[i] = Math.ceil(data[i]);
+		else if (op == UnaryFunction.sqrt)
+			for (int i = 0; i < n; i++) data[i] = Math.sqrt(data[i]);
+		else if (op == UnaryFunction.ln)
+			for (int i = 0; i < n; i++) data[i] = Math.log(data[i]);
+		else
+			for (int i = 0; i < n; i++) data[i] = op.evaluateDouble(data[i]);
+	}
+}
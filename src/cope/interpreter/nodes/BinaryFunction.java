@@ -2,46 +2,90 @@ package cope.interpreter.nodes;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import cope.interpreter.Variable;
+import cope.interpreter.instrumentation.EvaluationCounters;
 import cope.interpreter.patterns.BinaryInstruction;
 import cope.interpreter.patterns.DifferentiationPattern;
 
 public class BinaryFunction extends Function 
 {
-	private BinaryInstruction instruction;
-	private Function parent;
+	private final Function left, right;
+	private final BinaryInstruction instruction;
+	/** The count of evaluations of instruction, or null unless EvaluationCounters are enabled. */
+	private final LongAdder counter;
 	
 	public BinaryFunction(Function childNode0, Function childNode1, BinaryInstruction operation)
 	{
+		super(childNode0, childNode1);
+		this.left = childNode0;
+		this.right = childNode1;
 		this.instruction = operation;
-		childNode0.setParent(this);
-		childNode1.setParent(this);
-		children = new Function[]{childNode0, childNode1};
+		this.counter = EvaluationCounters.counter(operation);
+		rehash();
 	}
 	
-	public float evaluate(Variable var) throws Exception
+	@Override
+	protected Function newInstance(Function...children)
 	{
-		ArrayList<Variable> variables = new ArrayList<Variable>();
-		variables.add(var); variables.add(Function.E); variables.add(Function.PI);
-		return instruction.evaluate(getLeftChild().evaluate(variables), getRightChild().evaluate(variables));
+		return new BinaryFunction(children[0], children[1], instruction);
 	}
 	
-	public float evaluate(ArrayList<Variable> variables) throws Exception
+	public double evaluateDouble(Variable var) throws Exception
 	{
-		if (!variables.contains(Function.E))
-			variables.add(Function.E); 
-		if (!variables.contains(Function.PI))
-			variables.add(Function.PI);
-		return instruction.evaluate(getLeftChild().evaluate(variables), getRightChild().evaluate(variables));
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(getLeftChild().evaluateDouble(var), getRightChild().evaluateDouble(var));
 	}
-
+	
+	public double evaluateDouble(ArrayList<Variable> variables) throws Exception
+	{
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(getLeftChild().evaluateDouble(variables), getRightChild().evaluateDouble(variables));
+	}
+	
+	public double evaluate(double[] slots)
+	{
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(left.evaluate(slots), right.evaluate(slots));
+	}
+	
+	/**
+	 * The child needing more buffers is evaluated first, directly into out,
+	 * so that a long chain such as a + (b + (c + ...)) needs only one buffer.
+	 */
 	@Override
-	public Function getParent() { return parent; }
+	protected void evaluateBatch(double[][] columns, double[] out, double[][] buffers, int depth)
+	{
+		double[] buffer = buffers[depth];
+		if (left.getBatchBuffers() >= right.getBatchBuffers())
+		{
+			left.evaluateBatch(columns, out, buffers, depth);
+			right.evaluateBatch(columns, buffer, buffers, depth + 1);
+			BatchKernels.apply(instruction, out, buffer, out, out.length);
+		}
+		else
+		{
+			right.evaluateBatch(columns, out, buffers, depth);
+			left.evaluateBatch(columns, buffer, buffers, depth + 1);
+			BatchKernels.apply(instruction, buffer, out, out, out.length);
+		}
+		if (EvaluationCounters.ENABLED)
+			counter.add(out.length);
+	}
 	
 	@Override
-	public Function setParent(Function parent) { this.parent = parent; return this; }
+	protected int countBatchBuffers()
+	{
+		int l = left.getBatchBuffers();
+		int r = right.getBatchBuffers();
+		return Math.max(Math.max(l, r), Math.min(l, r) + 1);
+	}
 	
 	@Override
 	public Set<String> getVariables() 
@@ -52,20 +96,18 @@ public class BinaryFunction extends Function
 		return vars;
 	}
 	
-	public Function differentiate(Variable var)
+	@Override
+	protected Function differentiateNode(Variable var, DerivativeCache cache)
 	{
-		DifferentiationPattern pattern = null;
-		for (int i = 0; i < standardInstructions.length; i++)
-			if (instruction.equals(standardInstructions[i])) {
-				pattern = standardDifferentiationPatterns[i];
-				break;
-			}
-		Function diff = pattern.differentiate(this, var);
-		return diff;
+		DifferentiationPattern pattern = differentiationPatterns.get(instruction);
+		if (pattern == null)
+			throw new UnsupportedOperationException("Cannot differentiate " + getString() 
+					+ ": " + instruction.getString() + " is not differentiable.");
+		return pattern.differentiate(this, var, cache);
 	}
 	
-	public Function getLeftChild()  { return children[0]; }
-	public Function getRightChild() { return children[1]; }
+	public Function getLeftChild()  { return left; }
+	public Function getRightChild() { return right; }
 	
 	public String getString()
 	{
@@ -100,11 +142,23 @@ public class BinaryFunction extends Function
 	public String getType() { return "binary"; }
 	public BinaryInstruction getInstruction() { return instruction; }
 	
+	@Override
+	protected int computeHash() {
+		return 31 * super.computeHash() + instruction.getString().hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return super.equals(o) && ((BinaryFunction) o).getInstruction().equals(instruction);
+	}
+	
 	
 	public static final BinaryInstruction addition = new BinaryInstruction() {
 		@Override
 		public float evaluate(float arg0, float arg1) { return arg0 + arg1; }
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return arg0 + arg1; }
+		@Override
 		public String getString() { return "+"; } 
 		public int getPriority() { return 3; }
 	};
@@ -113,6 +167,8 @@ public class BinaryFunction extends Function
 		@Override
 		public float evaluate(float arg0, float arg1) { return arg0 - arg1; } 
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return arg0 - arg1; }
+		@Override
 		public String getString() { return "-"; } 
 		public int getPriority() { return 4; }
 	};
@@ -121,6 +177,8 @@ public class BinaryFunction extends Function
 		@Override
 		public float evaluate(float arg0, float arg1) { return arg0 * arg1; } 
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return arg0 * arg1; }
+		@Override
 		public String getString() { return "*"; } 
 		public int getPriority() { return 2; }
 	};
@@ -129,6 +187,8 @@ public class BinaryFunction extends Function
 		@Override
 		public float evaluate(float arg0, float arg1) { return arg0 / arg1; }
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return arg0 / arg1; }
+		@Override
 		public String getString() { return "/"; }  
 		public int getPriority() { return 1; }
 	};
@@ -137,6 +197,8 @@ public class BinaryFunction extends Function
 		@Override
 		public float evaluate(float arg0, float arg1) { return (float) Math.pow(arg0, arg1); }
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return Math.pow(arg0, arg1); }
+		@Override
 		public String getString() { return "^"; } 
 		public int getPriority() { return 0; }
 	};
@@ -145,6 +207,8 @@ public class BinaryFunction extends Function
 		@Override
 		public float evaluate(float arg0, float arg1) { return arg0 % arg1; }
 		@Override
+		public double evaluateDouble(double arg0, double arg1) { return arg0 % arg1; }
+		@Override
 		public String getString() { return "%"; } 
 		public int getPriority() { return 5; }
 	};
@@ -152,10 +216,10 @@ public class BinaryFunction extends Function
 	/** Applies the rule (d/dx)(f(x) + g(x)) = f'(x) + g'(x). */
 	public static final DifferentiationPattern dAddition = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
 			return new BinaryFunction(
-					f.getChildren()[0].differentiate(var),
-					f.getChildren()[1].differentiate(var),
+					f.getChild(0).differentiate(var, cache),
+					f.getChild(1).differentiate(var, cache),
 					addition);
 		}
 	};
@@ -163,12 +227,12 @@ public class BinaryFunction extends Function
 	/** Applies the rule (d/dx)(f(x) - g(x)) = f'(x) - g'(x). */
 	public static final DifferentiationPattern dSubtraction = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function c0 = f.getChildren()[0];
-			Function c1 = f.getChildren()[1];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function c0 = f.getChild(0);
+			Function c1 = f.getChild(1);
 			return new BinaryFunction(
-				c0.differentiate(var),
-				c1.differentiate(var),
+				c0.differentiate(var, cache),
+				c1.differentiate(var, cache),
 				subtraction
 				);
 		}
@@ -177,15 +241,15 @@ public class BinaryFunction extends Function
 	/** Applies the rule (d/dx)(f(x)g(x)) = f(x)g'(x) + f'(x)g(x). */
 	public static final DifferentiationPattern productRule = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function c0 = f.getChildren()[0];
-			Function c1 = f.getChildren()[1];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function c0 = f.getChild(0);
+			Function c1 = f.getChild(1);
 			return new BinaryFunction(
 				new BinaryFunction(
-						c0, c1.differentiate(var),
+						c0, c1.differentiate(var, cache),
 						multiplication),
 				new BinaryFunction(
-						c1, c0.differentiate(var),
+						c1, c0.differentiate(var, cache),
 						multiplication),
 				addition
 				);
@@ -195,16 +259,16 @@ public class BinaryFunction extends Function
 	/** Applies the rule (d/dx)(f(x)/g(x)) = [f'g - fg'] / (g^2). */
 	public static final DifferentiationPattern quotientRule = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function c0 = f.getChildren()[0];
-			Function c1 = f.getChildren()[1];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function c0 = f.getChild(0);
+			Function c1 = f.getChild(1);
 			return new BinaryFunction(
 				new BinaryFunction(
 					new BinaryFunction(
-						c1, c0.differentiate(var), multiplication
+						c1, c0.differentiate(var, cache), multiplication
 					),
 					new BinaryFunction(
-						c0, c1.differentiate(var), multiplication
+						c0, c1.differentiate(var, cache), multiplication
 					),
 					subtraction
 				),
@@ -217,16 +281,34 @@ public class BinaryFunction extends Function
 		}
 	};
 	
-	/** Applies the rule (d/dx)(f(x)^g(x)) = (f^g)[g'ln(f) + g(f'/f)]. */
+	/**
+	 * Applies the rule (d/dx)(f(x)^g(x)) = (f^g)[g'ln(f) + g(f'/f)], or the
+	 * power rule (d/dx)(f(x)^g) = g*f^(g-1)*f' where g does not depend on x,
+	 * which is defined wherever f is negative or 0.
+	 */
 	public static final DifferentiationPattern dExponentiation = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function c0 = f.getChildren()[0];
-			Function c1 = f.getChildren()[1];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function c0 = f.getChild(0);
+			Function c1 = f.getChild(1);
+			if (!c1.getVariables().contains(var.getName())) {
+				Function exponent = c1 instanceof Constant
+						? new Constant(((Constant) c1).getDoubleValue() - 1)
+						: new BinaryFunction(c1, new Constant(1), subtraction);
+				return new BinaryFunction(
+					new BinaryFunction(
+						c1,
+						new BinaryFunction(c0, exponent, exponentiation),
+						multiplication
+					),
+					c0.differentiate(var, cache),
+					multiplication
+					);
+			}
 			return new BinaryFunction(
 				new BinaryFunction(
 					new BinaryFunction(
-						c1.differentiate(var),
+						c1.differentiate(var, cache),
 						new UnaryFunction(
 							c0, UnaryFunction.ln
 						),
@@ -235,7 +317,7 @@ public class BinaryFunction extends Function
 					new BinaryFunction(
 						c1,
 						new BinaryFunction(
-							c0.differentiate(var),
+							c0.differentiate(var, cache),
 							c0, division),
 						multiplication
 					),
@@ -251,14 +333,43 @@ public class BinaryFunction extends Function
 	public static final DifferentiationPattern dModulo = null;
 	
 	
-	public static BinaryInstruction[] standardInstructions =
+	private static final BinaryInstruction[] standardInstructions =
 		{
 			modulo, multiplication, addition, subtraction, division, exponentiation
 		};
 	
-	public static DifferentiationPattern[] standardDifferentiationPatterns =
+	private static final DifferentiationPattern[] standardDifferentiationPatterns =
 		{
 			dModulo, productRule, dAddition, dSubtraction, quotientRule, dExponentiation
 		};
 	
+	/**
+	 * @return A copy of the array of the standard binary instructions, the
+	 * ones an Interpreter parses by default.
+	 */
+	public static BinaryInstruction[] getStandardInstructions() { return standardInstructions.clone(); }
+	
+	/**
+	 * @return A copy of the array of the differentiation patterns of the
+	 * standard instructions, in the same order, with null for an instruction
+	 * that is not differentiable.
+	 */
+	public static DifferentiationPattern[] getStandardDifferentiationPatterns() 
+	{ 
+		return standardDifferentiationPatterns.clone(); 
+	}
+	
+	/** 
+	 * Maps each standard instruction to its differentiation pattern, taken
+	 * from the two arrays above. 
+	 */
+	private static final IdentityHashMap<BinaryInstruction, DifferentiationPattern> differentiationPatterns =
+		new IdentityHashMap<BinaryInstruction, DifferentiationPattern>();
+	
+	static 
+	{
+		for (int i = 0; i < standardInstructions.length; i++)
+			differentiationPatterns.put(standardInstructions[i], standardDifferentiationPatterns[i]);
+	}
+	
 }
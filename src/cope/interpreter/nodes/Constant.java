@@ -1,6 +1,7 @@
 package cope.interpreter.nodes;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -8,32 +9,41 @@ import cope.interpreter.Variable;
 
 public class Constant extends Function
 {
-	private float constant;
-	private Function parent;
+	private final double constant;
 	
 	public Constant(float constant)
+	{
+		this((double) constant);
+	}
+	
+	public Constant(double constant)
 	{
 		this.constant = constant;
+		rehash();
 	}
 	
-	public Constant() {}
+	public Constant() { this(0); }
 	
-	public float evaluate(ArrayList<Variable> variables) { return this.constant; }
-	public float evaluate(Variable var) { return this.constant; }
-
 	@Override
-	public Function getParent() { return parent; }
+	protected Function newInstance(Function...children) { return new Constant(constant); }
+	
+	public double evaluateDouble(ArrayList<Variable> variables) { return this.constant; }
+	public double evaluateDouble(Variable var) { return this.constant; }
+	public double evaluate(double[] slots) { return this.constant; }
+	
 	@Override
-	public Function setParent(Function parent) { this.parent = parent; return this; }
+	protected void evaluateBatch(double[][] columns, double[] out, double[][] buffers, int depth) {
+		Arrays.fill(out, constant);
+	}
 
 	@Override
-	public Function differentiate(Variable var) {
+	protected Function differentiateNode(Variable var, DerivativeCache cache) {
 		return new Constant(0);
 	}
 
 	@Override
 	public String getString() {
-		return Float.toString(constant);
+		return Double.toString(constant);
 	}
 
 	@Override
@@ -47,17 +57,37 @@ public class Constant extends Function
 		return new HashSet<String>();
 	}
 	
-	public float getValue() { return constant; }
+	/**
+	 * @return The value rounded to a float, for callers of the float API;
+	 * see getDoubleValue.
+	 */
+	public float getValue() { return (float) constant; }
+	public double getDoubleValue() { return constant; }
 	
 	@Override
 	public boolean equals(Object o)
 	{
 		if (o instanceof Constant) {
 			Constant c = (Constant) o;
-			return c.getValue() == getValue();
+			return bits(c.getDoubleValue()) == bits(getDoubleValue());
 		}
 		return false;
 	}
+	
+	@Override
+	protected int computeHash() {
+		long bits = bits(constant);
+		return (int) (bits ^ (bits >>> 32));
+	}
+
+	/**
+	 * @return The bits of value, with -0.0 read as 0.0 and every NaN as the
+	 * same NaN, so that a NaN constant equals itself and 0.0 equals -0.0.
+	 */
+	private static long bits(double value)
+	{
+		return value == 0 ? 0L : Double.doubleToLongBits(value);
+	}
 
 }
 
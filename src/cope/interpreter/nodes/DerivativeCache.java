@@ -0,0 +1,83 @@
+package cope.interpreter.nodes;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import cope.interpreter.Variable;
+
+/**
+ * Remembers the derivatives of subtrees with respect to variables, so that a
+ * subtree appearing many times in a function, as they do after the chain and
+ * product rules have been applied, is only differentiated once.
+ *
+ * A cache made with no bound is meant to last for a single differentiation,
+ * or for the columns of a Jacobian or the orders of a higher derivative of
+ * one function. A cache that is kept across calls should be given a bound,
+ * beyond which the least recently used derivatives are forgotten.
+ *
+ * Derivatives returned from the cache are shared between the trees they
+ * appear in, and should not be modified.
+ */
+public class DerivativeCache
+{
+	private LinkedHashMap<Key, Function> derivatives;
+
+	public DerivativeCache()
+	{
+		derivatives = new LinkedHashMap<Key, Function>();
+	}
+
+	/**
+	 * @param maxEntries - The most derivatives that will be remembered.
+	 */
+	public DerivativeCache(final int maxEntries)
+	{
+		derivatives = new LinkedHashMap<Key, Function>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, Function> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	public synchronized Function get(Function f, Variable var)
+	{
+		return derivatives.get(new Key(f, var.getName()));
+	}
+
+	public synchronized void put(Function f, Variable var, Function derivative)
+	{
+		derivatives.put(new Key(f, var.getName()), derivative);
+	}
+
+	public synchronized int size() { return derivatives.size(); }
+
+	public synchronized void clear() { derivatives.clear(); }
+
+	private static class Key
+	{
+		private Function f;
+		private String var;
+
+		Key(Function f, String var)
+		{
+			this.f = f;
+			this.var = var;
+		}
+
+		@Override
+		public int hashCode() { return 31 * f.hashCode() + var.hashCode(); }
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if (o instanceof Key) {
+				Key k = (Key) o;
+				return k.var.equals(var) && k.f.equals(f);
+			}
+			return false;
+		}
+	}
+}
@@ -7,17 +7,37 @@ import java.util.Iterator;
 import java.util.Set;
 
 import cope.interpreter.Variable;
+import cope.interpreter.instrumentation.DifferentiateEvent;
+import cope.interpreter.instrumentation.SimplifyEvent;
 import cope.interpreter.patterns.BinaryInstruction;
-import cope.interpreter.patterns.SimplificationPattern;
+import cope.interpreter.patterns.RewriteEngine;
 
+/**
+ * A node of a function tree. Trees are immutable once built: a node's
+ * children, name and contents never change, and methods that would alter a
+ * tree, such as withChildren and withName, return a changed copy instead. A
+ * tree can therefore be shared between any number of threads and evaluated
+ * from all of them at once without locking.
+ */
 public abstract class Function implements Cloneable
 {	
 	private String name = "";
 	
-	protected Function[] children = new Function[]{};
+	private final Function[] children;
+	// computed lazily; threads racing to compute it all store the same value
+	private int batchBuffers = -1;
+	private int hash;
 	
-	public static Variable PI = new Variable("pi", (float) Math.PI);
-	public static Variable E = new Variable("e", (float) Math.E);
+	public static final Variable PI = Variable.constant("pi", Math.PI);
+	public static final Variable E = Variable.constant("e", Math.E);
+	
+	/**
+	 * @param children - The children of the node, which are copied.
+	 */
+	protected Function(Function...children)
+	{
+		this.children = children.clone();
+	}
 	
 	public String toString() 
 	{ 
@@ -47,26 +67,180 @@ public abstract class Function implements Cloneable
 		return "";
 	}
 	
-	public Function[] getChildren() { return children; }
-	public void setChildren(Function[] children) { this.children = children; }
-	public Function setName(String name) { this.name = name; return this; }
+	/**
+	 * @return A copy of the array of this node's children.
+	 */
+	public Function[] getChildren() { return children.clone(); }
+	public Function getChild(int i) { return children[i]; }
+	public int getChildCount() { return children.length; }
+	
+	/**
+	 * @param children - The children of the new node.
+	 * @return A copy of this node with the given children, and the same
+	 * name and contents.
+	 */
+	public Function withChildren(Function...children)
+	{
+		Function f = newInstance(children);
+		f.name = name;
+		return f;
+	}
+	
+	/**
+	 * @return A new node with the contents of this one and the given
+	 * children, but no name.
+	 */
+	protected abstract Function newInstance(Function...children);
+	
+	/**
+	 * @return A copy of this node with the given name.
+	 */
+	public Function withName(String name)
+	{
+		Function f = clone();
+		f.name = name;
+		return f;
+	}
+	
+	/**
+	 * Evaluates this function in double precision, as a function of var.
+	 * @throws Exception if the function has a variable other than var and
+	 * the standard variables.
+	 */
+	public abstract double evaluateDouble(Variable var) throws Exception;
+	
+	/**
+	 * Evaluates this function in double precision at the values of variables.
+	 * @throws Exception if the function has a variable that is not in
+	 * variables and is not a standard variable.
+	 */
+	public abstract double evaluateDouble(ArrayList<Variable> variables) throws Exception;
+	
+	/**
+	 * The single precision form of evaluateDouble(Variable), whose result is
+	 * rounded to a float.
+	 */
+	public float evaluate(Variable var) throws Exception 
+	{ 
+		return (float) evaluateDouble(var); 
+	}
+	
+	/**
+	 * The single precision form of evaluateDouble(ArrayList), whose result is
+	 * rounded to a float.
+	 */
+	public float evaluate(ArrayList<Variable> variables) throws Exception 
+	{ 
+		return (float) evaluateDouble(variables); 
+	}
+	
+	/**
+	 * Evaluates a function that has been bound with bind(String...). The value
+	 * of each variable is read from the slot it was bound to, so no names are
+	 * looked up and nothing is allocated.
+	 * @param slots - The values of the bound variables, in the order they were
+	 * given to bind.
+	 * @return The value of the function.
+	 */
+	public abstract double evaluate(double[] slots);
 	
-	public abstract float evaluate(Variable var) throws Exception;
-	public abstract float evaluate(ArrayList<Variable> variables) throws Exception;
-	public abstract Function getParent();
-	public abstract Function setParent(Function parent);
+	/**
+	 * Evaluates a function that has been bound with bind(String...) at many
+	 * points at once. Each node is evaluated for the whole batch before its
+	 * parent, so the tree is walked once per batch rather than once per point.
+	 * @param columns - The values of each bound variable, indexed by slot and
+	 * then by point.
+	 * @param out - The array the values of the function are written to. Its
+	 * length is the number of points evaluated.
+	 */
+	public void evaluateBatch(double[][] columns, double[] out)
+	{
+		double[][] buffers = new double[getBatchBuffers()][out.length];
+		evaluateBatch(columns, out, buffers, 0);
+	}
+	
+	/**
+	 * Writes the values of this function to out, using buffers from index
+	 * depth onwards to hold intermediate values.
+	 */
+	protected abstract void evaluateBatch(double[][] columns, double[] out, double[][] buffers, int depth);
+	
+	/**
+	 * @return The number of intermediate buffers needed by evaluateBatch.
+	 */
+	protected int getBatchBuffers()
+	{
+		if (batchBuffers < 0)
+			batchBuffers = countBatchBuffers();
+		return batchBuffers;
+	}
+	
+	protected int countBatchBuffers()
+	{
+		int buffers = 0;
+		for (Function c : children)
+			buffers = Math.max(buffers, c.getBatchBuffers());
+		return buffers;
+	}
 	public abstract String getString();
 	public abstract String getType();
 	public abstract Set<String> getVariables();
 	
+	/**
+	 * Resolves each variable of this function to the index of its name in
+	 * variables, so that the result can be evaluated with evaluate(double[]).
+	 * The standard variables pi and e are bound to their values unless they
+	 * are named in variables. This function is left unchanged.
+	 * @param variables - The names of the variables, in slot order.
+	 * @return A copy of this function with its variables bound.
+	 * @throws Exception if a variable of this function is not in variables.
+	 */
+	public Function bind(String...variables) throws Exception
+	{
+		int len = children.length;
+		Function[] newChildren = new Function[len];
+		for (int i = 0; i < len; i++)
+			newChildren[i] = children[i].bind(variables);
+		
+		return withChildren(newChildren);
+	}
+	
 	public Function differentiate() 
 	{ 
-		Function f = differentiate(new Variable("x")); 
-		f.name = name + "'";
-		return f;
+		return differentiate(new Variable("x")).withName(name + "'");
 	}
 	
-	public abstract Function differentiate(Variable var);
+	public Function differentiate(Variable var)
+	{
+		DifferentiateEvent event = new DifferentiateEvent();
+		event.begin();
+		Function diff = differentiate(var, new DerivativeCache());
+		event.record(this, var.getName(), diff);
+		return diff;
+	}
+	
+	/**
+	 * Differentiates this function, reusing any derivatives of its subtrees
+	 * already held by cache and adding those it has to compute.
+	 * @param var - The variable of differentiation.
+	 * @param cache - The cache of derivatives to use.
+	 * @return The derivative of this function with respect to var.
+	 */
+	public Function differentiate(Variable var, DerivativeCache cache)
+	{
+		Function diff = cache.get(this, var);
+		if (diff == null) {
+			diff = differentiateNode(var, cache);
+			cache.put(this, var, diff);
+		}
+		return diff;
+	}
+	
+	/**
+	 * Differentiates the root of this function, differentiating its children
+	 * through cache.
+	 */
+	protected abstract Function differentiateNode(Variable var, DerivativeCache cache);
 	
 	public Set<Function> getCommonFactors()
 	{
@@ -103,29 +277,18 @@ public abstract class Function implements Cloneable
 		return factors;
 	}
 	
+	/**
+	 * Simplifies this function with the standard patterns of the
+	 * RewriteEngine. This function is left unchanged.
+	 * @return A simplified function with the same name as this one.
+	 */
 	public Function simplify()
 	{	
-		Function[] children = getChildren();
-		int len = children.length;
-		Function[] newChildren = new Function[len];
-		for (int i = 0; i < len; i++) {
-			newChildren[i] = children[i].simplify();
-		}
-		
-		Function newThis = (Function) clone();
-		newThis.setChildren(newChildren);
-		
-		for (SimplificationPattern p : SimplificationPattern.patterns)
-		{
-			if (p.matches(newThis)) {
-				Function transformed = p.transform(newThis).simplify();
-//				System.out.println(newThis.getString() + " -> " + transformed.getString());
-				newThis = transformed;
-			}
-		}
-
-		newThis.setName(name);
-		return newThis;
+		SimplifyEvent event = new SimplifyEvent();
+		event.begin();
+		Function simplified = RewriteEngine.standard.simplify(this).withName(name);
+		event.record(this, simplified);
+		return simplified;
 	}
 	
 	public float x(float a) { 
@@ -148,23 +311,50 @@ public abstract class Function implements Cloneable
 		return null;
 	}
 	
+	/**
+	 * Two functions are equal if they have the same structure, regardless of
+	 * their names. The hash codes of equal functions are equal, and as each
+	 * node's hash code is computed when its children are set, comparing two
+	 * unequal trees usually stops at their roots.
+	 */
 	@Override
 	public boolean equals(Object o)
 	{
+		if (this == o)
+			return true;
 		if (o instanceof Function) 
 		{
 			Function f = (Function) o;
+			if (f.hash != hash || f.getClass() != getClass())
+				return false;
 			int len = children.length;
-			if (f.getChildren().length != len)
+			if (f.children.length != len)
 				return false;
 			
-			boolean eq = true;
 			for (int i = 0; i < len; i++)
-				eq &= children[i].equals(f.getChildren()[i]);
-			return eq;
+				if (!children[i].equals(f.children[i]))
+					return false;
+			return true;
 		}
 		return false;
 	}
+	
+	@Override
+	public int hashCode() { return hash; }
+	
+	/**
+	 * Computes the cached hash code of this node, which must be done
+	 * whenever a node is built or copied with new children.
+	 */
+	protected void rehash() { hash = computeHash(); }
+	
+	protected int computeHash()
+	{
+		int h = getType().hashCode();
+		for (Function c : children)
+			h = 31 * h + c.hashCode();
+		return h;
+	}
 
 }
 
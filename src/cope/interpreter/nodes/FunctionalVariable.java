@@ -9,34 +9,110 @@ import cope.interpreter.Variable;
 
 public class FunctionalVariable extends Function
 {
-	private String name;
-	private Function parent;
+	/** Slot of a variable that has not been bound. */
+	public static final int UNBOUND = -1;
+	/** Slot of a standard variable, such as pi, bound to its fixed value. */
+	public static final int STANDARD = -2;
+	
+	private final String name;
+	private final int slot;
+	private final double standardValue;
 	
 	public FunctionalVariable(String name)
+	{
+		this(name, UNBOUND);
+	}
+	
+	/**
+	 * Creates a variable that has been bound to the given slot,
+	 * see Function.bind(String...).
+	 */
+	public FunctionalVariable(String name, int slot)
+	{
+		this(name, slot, 0);
+	}
+	
+	private FunctionalVariable(String name, int slot, double standardValue)
 	{
 		this.name = name;
+		this.slot = slot;
+		this.standardValue = standardValue;
+		rehash();
+	}
+	
+	@Override
+	protected Function newInstance(Function...children)
+	{
+		return new FunctionalVariable(name, slot, standardValue);
 	}
 
 	@Override
-	public float evaluate(ArrayList<Variable> variables) throws Exception {
+	public double evaluateDouble(ArrayList<Variable> variables) throws Exception {
 		for (Variable var : variables)
 			if (var.getName().equals(name))
-				return var.get();
+				return var.getDouble();
+		
+		Variable standard = getStandardVariable();
+		if (standard != null)
+			return standard.getDouble();
 
 		throw new Exception("Invalid variable: " + name + " cannot be matched to any variable in " + Arrays.toString(variables.toArray()));
 	}
 	
-	public float evaluate(Variable var) throws Exception
+	public double evaluateDouble(Variable var) throws Exception
 	{
 		if (var.getName().equals(name))
-			return var.get();
-		else throw new Exception("Invalid variable: " + name + " cannot be matched to " + var.getName());
+			return var.getDouble();
+		
+		Variable standard = getStandardVariable();
+		if (standard != null)
+			return standard.getDouble();
+		
+		throw new Exception("Invalid variable: " + name + " cannot be matched to " + var.getName());
 	}
-
+	
+	@Override
+	public double evaluate(double[] slots)
+	{
+		if (slot >= 0)
+			return slots[slot];
+		if (slot == STANDARD)
+			return standardValue;
+		throw new IllegalStateException("Variable " + name + " has not been bound to a slot.");
+	}
+	
 	@Override
-	public Function getParent() { return parent; }
+	protected void evaluateBatch(double[][] columns, double[] out, double[][] buffers, int depth)
+	{
+		if (slot >= 0)
+			System.arraycopy(columns[slot], 0, out, 0, out.length);
+		else if (slot == STANDARD)
+			Arrays.fill(out, standardValue);
+		else throw new IllegalStateException("Variable " + name + " has not been bound to a slot.");
+	}
+	
 	@Override
-	public Function setParent(Function parent) { this.parent = parent; return this; }
+	public Function bind(String...variables) throws Exception
+	{
+		for (int i = 0; i < variables.length; i++)
+			if (variables[i].equals(name))
+				return new FunctionalVariable(name, i);
+		
+		Variable standard = getStandardVariable();
+		if (standard == null)
+			throw new Exception("Cannot bind " + name + ": it is not one of " + Arrays.toString(variables));
+		
+		return new FunctionalVariable(name, STANDARD, standard.getDouble());
+	}
+	
+	private Variable getStandardVariable()
+	{
+		if (name.equals(Function.PI.getName()))
+			return Function.PI;
+		if (name.equals(Function.E.getName()))
+			return Function.E;
+		return null;
+	}
 	
 	@Override
 	public Set<String> getVariables()	{
@@ -46,9 +122,10 @@ public class FunctionalVariable extends Function
 	}
 	
 	public String getName() { return name; }
+	public int getSlot() { return slot; }
 	
 	@Override
-	public Function differentiate(Variable var) 
+	protected Function differentiateNode(Variable var, DerivativeCache cache) 
 	{
 		if (var.getName().equals(name))
 			return new Constant(1);
@@ -62,14 +139,24 @@ public class FunctionalVariable extends Function
 		return "variable";
 	}
 	
+	/**
+	 * Variables are equal if they have the same name and the same slot, so a
+	 * bound tree is never taken for its unbound form, or for the same tree
+	 * bound in another order, by the caches keyed on functions.
+	 */
 	@Override
 	public boolean equals(Object o)
 	{
 		if (o instanceof FunctionalVariable) {
 			FunctionalVariable v = (FunctionalVariable) o;
-			return v.getName().equals(name);
+			return v.getName().equals(name) && v.getSlot() == slot;
 		}
 		return false;
 	}
+	
+	@Override
+	protected int computeHash() {
+		return 31 * name.hashCode() + slot;
+	}
 
 }
@@ -0,0 +1,76 @@
+package cope.interpreter.nodes;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import cope.interpreter.patterns.BinaryInstruction;
+import cope.interpreter.patterns.UnaryInstruction;
+
+/**
+ * Builds function trees out of shared, hash-consed nodes. The factory keeps
+ * one node for every distinct structure it has built, so structurally equal
+ * subtrees made by the same factory are the same object, and the repeated
+ * subtrees of a derivative are stored only once.
+ *
+ * Nodes from a factory are unnamed, whatever the names of the functions
+ * they were interned from.
+ *
+ * A factory is safe to share between threads, and holds on to every node it
+ * has built until it is cleared.
+ */
+public class NodeFactory
+{
+	private ConcurrentHashMap<Function, Function> nodes = new ConcurrentHashMap<Function, Function>();
+
+	public Function constant(double value)
+	{
+		return canonical(new Constant(value));
+	}
+
+	public Function variable(String name)
+	{
+		return canonical(new FunctionalVariable(name));
+	}
+
+	public Function unary(Function child, UnaryInstruction operation)
+	{
+		return canonical(new UnaryFunction(intern(child), operation));
+	}
+
+	public Function binary(Function left, Function right, BinaryInstruction operation)
+	{
+		return canonical(new BinaryFunction(intern(left), intern(right), operation));
+	}
+
+	/**
+	 * Finds the shared node for the structure of f, adding it and any of its
+	 * subtrees the factory has not seen before. f itself is left unchanged.
+	 * @param f - The function to be interned.
+	 * @return A node from this factory equal to f.
+	 */
+	public Function intern(Function f)
+	{
+		Function existing = nodes.get(f);
+		if (existing != null)
+			return existing;
+
+		int len = f.getChildCount();
+		Function[] newChildren = new Function[len];
+		for (int i = 0; i < len; i++)
+			newChildren[i] = intern(f.getChild(i));
+
+		return canonical(f.withChildren(newChildren).withName(""));
+	}
+
+	private Function canonical(Function f)
+	{
+		Function existing = nodes.putIfAbsent(f, f);
+		return existing == null ? f : existing;
+	}
+
+	/**
+	 * @return The number of distinct nodes held by the factory.
+	 */
+	public int size() { return nodes.size(); }
+
+	public void clear() { nodes.clear(); }
+}
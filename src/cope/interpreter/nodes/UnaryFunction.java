@@ -2,67 +2,101 @@ package cope.interpreter.nodes;
 
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 
 import cope.interpreter.Variable;
+import cope.interpreter.instrumentation.EvaluationCounters;
 import cope.interpreter.patterns.DifferentiationPattern;
 import cope.interpreter.patterns.UnaryInstruction;
 
 public class UnaryFunction extends Function
 {
-	private UnaryInstruction instruction;
-	private Function childFunction;
-	private Function parent;
+	private final Function child;
+	private final UnaryInstruction instruction;
+	/** The count of evaluations of instruction, or null unless EvaluationCounters are enabled. */
+	private final LongAdder counter;
 	
 	public UnaryFunction(Function childNode, UnaryInstruction operation)
 	{
-		this.instruction = operation; this.childFunction = childNode;
-		childFunction.setParent(this);
-		children = new Function[]{childFunction};
+		super(childNode);
+		this.child = childNode;
+		this.instruction = operation;
+		this.counter = EvaluationCounters.counter(operation);
+		rehash();
 	}
 	
 	@Override
-	public float evaluate(ArrayList<Variable> variables) throws Exception
+	protected Function newInstance(Function...children)
 	{
-		return instruction.evaluate(childFunction.evaluate(variables));
+		return new UnaryFunction(children[0], instruction);
 	}
 	
 	@Override
-	public float evaluate(Variable var) throws Exception {
-		return instruction.evaluate(childFunction.evaluate(var));
+	public double evaluateDouble(ArrayList<Variable> variables) throws Exception
+	{
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(getChild().evaluateDouble(variables));
 	}
-
+	
 	@Override
-	public Function getParent() { return parent; }
+	public double evaluateDouble(Variable var) throws Exception {
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(getChild().evaluateDouble(var));
+	}
+	
 	@Override
-	public Function setParent(Function parent) { this.parent = parent; return this; }
-	public UnaryInstruction getInstruction() { return instruction; }
+	public double evaluate(double[] slots) {
+		if (EvaluationCounters.ENABLED)
+			counter.increment();
+		return instruction.evaluateDouble(child.evaluate(slots));
+	}
 	
 	@Override
-	public Function differentiate(Variable var) {
-		DifferentiationPattern pattern = null;
-		for (int i = 0; i < standardInstructions.length; i++)
-			if (instruction.equals(standardInstructions[i])) {
-				pattern = standardDifferentiationPatterns[i];
-				break;
-			}
+	protected void evaluateBatch(double[][] columns, double[] out, double[][] buffers, int depth) {
+		child.evaluateBatch(columns, out, buffers, depth);
+		BatchKernels.apply(instruction, out, out.length);
+		if (EvaluationCounters.ENABLED)
+			counter.add(out.length);
+	}
 
-		Function diff = pattern.differentiate(this, var);
-		return diff;
+	public UnaryInstruction getInstruction() { return instruction; }
+	public Function getChild() { return child; }
+	
+	@Override
+	protected Function differentiateNode(Variable var, DerivativeCache cache) {
+		DifferentiationPattern pattern = differentiationPatterns.get(instruction);
+		if (pattern == null)
+			throw new UnsupportedOperationException("Cannot differentiate " + getString() 
+					+ ": " + instruction.getString() + " is not differentiable.");
+		return pattern.differentiate(this, var, cache);
 	}
 	
 	public String getString()
 	{
-		return instruction.getString() + "(" + childFunction.getString() + ")";
+		return instruction.getString() + "(" + getChild().getString() + ")";
 	}
 	
 	public String getType() { return "unary"; }
 	
+	@Override
+	protected int computeHash() {
+		return 31 * super.computeHash() + instruction.getString().hashCode();
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		return super.equals(o) && ((UnaryFunction) o).getInstruction().equals(instruction);
+	}
+	
 	@Override
 	public Set<String> getVariables()
 	{
 		Set<String> vars = new HashSet<String>();
-		vars.addAll(childFunction.getVariables());
+		vars.addAll(getChild().getVariables());
 		return vars;
 	}
 	
@@ -70,6 +104,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.sin(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.sin(arg); }
+		@Override
 		public String getString() { return "sin"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -79,6 +115,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.cos(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.cos(arg); }
+		@Override
 		public String getString() { return "cos"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -88,6 +126,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.tan(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.tan(arg); }
+		@Override
 		public String getString() { return "tan"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -97,6 +137,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.abs(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.abs(arg); }
+		@Override
 		public String getString() { return "abs"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -106,6 +148,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.sinh(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.sinh(arg); }
+		@Override
 		public String getString() { return "sinh"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -115,6 +159,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.cosh(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.cosh(arg); }
+		@Override
 		public String getString() { return "cosh"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -124,6 +170,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.tanh(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.tanh(arg); }
+		@Override
 		public String getString() { return "tanh"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -133,6 +181,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.floor(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.floor(arg); }
+		@Override
 		public String getString() { return "floor"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -142,6 +192,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.ceil(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.ceil(arg); }
+		@Override
 		public String getString() { return "ceil"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -151,6 +203,8 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.sqrt(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.sqrt(arg); }
+		@Override
 		public String getString() { return "sqrt"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
@@ -160,15 +214,17 @@ public class UnaryFunction extends Function
 		@Override
 		public float evaluate(double arg) { return (float) Math.log(arg); }
 		@Override
+		public double evaluateDouble(double arg) { return Math.log(arg); }
+		@Override
 		public String getString() { return "ln"; }
 		@Override
 		public String getLatex() { return "\text{" + getString() + "}"; }
 	};
 	
-	public static Function chainRule(UnaryInstruction i, Function f, Variable var) {
-		Function child = f.getChildren()[0];
+	public static Function chainRule(UnaryInstruction i, Function f, Variable var, DerivativeCache cache) {
+		Function child = f.getChild(0);
 		return new BinaryFunction(
-			child.differentiate(var),
+			child.differentiate(var, cache),
 			new UnaryFunction(child, i),
 			BinaryFunction.multiplication
 		);
@@ -177,17 +233,17 @@ public class UnaryFunction extends Function
 	/** Applying (d/dx)[sin(f(x))] = f'cos(f). */
 	public static final DifferentiationPattern dSin = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			return chainRule(cos, f, var);
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			return chainRule(cos, f, var, cache);
 		}
 	};
 
 	/** Applying (d/dx)[cos(f(x))] = -f'sin(f). */
 	public static final DifferentiationPattern dCos = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
 			return new BinaryFunction(
-				chainRule(sin, f, var),
+				chainRule(sin, f, var, cache),
 				new Constant(-1),
 				BinaryFunction.multiplication
 			);
@@ -197,10 +253,10 @@ public class UnaryFunction extends Function
 	/** Applying (d/dx)[tan(f(x))] = f'/(cos^2(f)). */
 	public static final DifferentiationPattern dTan = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function child = f.getChildren()[0];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function child = f.getChild(0);
 			return new BinaryFunction(
-				child.differentiate(var),
+				child.differentiate(var, cache),
 				new BinaryFunction(
 					new UnaryFunction(child, cos),
 					new Constant(2),
@@ -213,24 +269,24 @@ public class UnaryFunction extends Function
 	
 	public static final DifferentiationPattern dSinh = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			return chainRule(cosh, f, var);
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			return chainRule(cosh, f, var, cache);
 		}
 	};
 	
 	public static final DifferentiationPattern dCosh = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			return chainRule(sinh, f, var);
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			return chainRule(sinh, f, var, cache);
 		}
 	};
 
 	public static final DifferentiationPattern dTanh = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function child = f.getChildren()[0];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function child = f.getChild(0);
 			return new BinaryFunction(
-				child.differentiate(var),
+				child.differentiate(var, cache),
 				new BinaryFunction(
 					new UnaryFunction(child, cosh),
 					new Constant(2),
@@ -243,34 +299,64 @@ public class UnaryFunction extends Function
 	
 	public static final DifferentiationPattern dSqrt = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function child = f.getChildren()[0];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function child = f.getChild(0);
 			return new BinaryFunction(
-				child.differentiate(var),
-				f, BinaryFunction.division
+				child.differentiate(var, cache),
+				new BinaryFunction(new Constant(2), f, BinaryFunction.multiplication),
+				BinaryFunction.division
 			);
 		}
 	};
 	
 	public static final DifferentiationPattern dLn = new DifferentiationPattern() {
 		@Override
-		public Function differentiate(Function f, Variable var) {
-			Function child = f.getChildren()[0];
+		public Function differentiate(Function f, Variable var, DerivativeCache cache) {
+			Function child = f.getChild(0);
 			return new BinaryFunction(
-					child.differentiate(var), 
+					child.differentiate(var, cache), 
 					child, BinaryFunction.division
 			);
 		}
 	};
 	
-	public static UnaryInstruction[] standardInstructions =
+	private static final UnaryInstruction[] standardInstructions =
 	{
 		abs, ceil, cos, cosh, floor, ln, sin, sinh, sqrt, tan, tanh
 	};
 
-	public static DifferentiationPattern[] standardDifferentiationPatterns =
+	private static final DifferentiationPattern[] standardDifferentiationPatterns =
 	{
 		null, null, dCos, dCosh, null, dLn, dSin, dSinh, dSqrt, dTan, dTanh
 	};
+	
+	/**
+	 * @return A copy of the array of the standard unary instructions, the
+	 * ones an Interpreter parses by default.
+	 */
+	public static UnaryInstruction[] getStandardInstructions() { return standardInstructions.clone(); }
+	
+	/**
+	 * @return A copy of the array of the differentiation patterns of the
+	 * standard instructions, in the same order, with null for an instruction
+	 * that is not differentiable.
+	 */
+	public static DifferentiationPattern[] getStandardDifferentiationPatterns() 
+	{ 
+		return standardDifferentiationPatterns.clone(); 
+	}
+	
+	/** 
+	 * Maps each standard instruction to its differentiation pattern, taken
+	 * from the two arrays above. 
+	 */
+	private static final IdentityHashMap<UnaryInstruction, DifferentiationPattern> differentiationPatterns =
+		new IdentityHashMap<UnaryInstruction, DifferentiationPattern>();
+	
+	static 
+	{
+		for (int i = 0; i < standardInstructions.length; i++)
+			differentiationPatterns.put(standardInstructions[i], standardDifferentiationPatterns[i]);
+	}
 
 }
@@ -5,4 +5,15 @@ public interface BinaryInstruction
 	public int getPriority();
 	public String getString();
 	public float evaluate(float arg0, float arg1);
+
+	/**
+	 * Evaluates the instruction in double precision. By default the arguments
+	 * are rounded to floats and passed to evaluate(float, float), so an
+	 * instruction written against the float API keeps working; the standard
+	 * instructions override it to keep full precision throughout.
+	 */
+	public default double evaluateDouble(double arg0, double arg1)
+	{
+		return evaluate((float) arg0, (float) arg1);
+	}
 }
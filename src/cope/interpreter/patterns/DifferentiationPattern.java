@@ -1,9 +1,17 @@
 package cope.interpreter.patterns;
 
 import cope.interpreter.Variable;
+import cope.interpreter.nodes.DerivativeCache;
 import cope.interpreter.nodes.Function;
 
 public interface DifferentiationPattern 
 {
-	public abstract Function differentiate(Function f, Variable var);
+	/**
+	 * @param f - The function to be differentiated, with the instruction
+	 * this pattern belongs to at its root.
+	 * @param var - The variable of differentiation.
+	 * @param cache - The cache to pass on when differentiating the children of f.
+	 * @return The derivative of f with respect to var.
+	 */
+	public abstract Function differentiate(Function f, Variable var, DerivativeCache cache);
 }
@@ -0,0 +1,158 @@
+package cope.interpreter.patterns;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+import cope.interpreter.nodes.BinaryFunction;
+import cope.interpreter.nodes.Constant;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Rewrites function trees to a normal form by repeatedly applying
+ * SimplificationPatterns. Patterns are indexed by the instruction at the root
+ * of the trees they match, so each node is only tested against the patterns
+ * that could apply to it.
+ *
+ * Trees are rewritten bottom-up: the children of a node are brought to
+ * normal form before any pattern is tried on the node itself, and whatever a
+ * pattern returns is rewritten in turn until no pattern matches. Normal forms
+ * are remembered for the length of a call to simplify, so a subtree that
+ * appears many times, or that a pattern hands back unchanged, is only
+ * simplified once. A subtree that rewrites back into itself is left as it is.
+ */
+public class RewriteEngine
+{
+	/**
+	 * The engine used by Function.simplify, holding the standard patterns.
+	 * This is the only list of them, each under the instruction it matches.
+	 */
+	public static final RewriteEngine standard = new RewriteEngine();
+
+	static
+	{
+		standard.addPattern(BinaryFunction.multiplication, SimplificationPattern.zeroMult);
+		standard.addPattern(BinaryFunction.addition, SimplificationPattern.zeroAdd);
+		standard.addPattern(BinaryFunction.multiplication, SimplificationPattern.oneMult);
+		standard.addPattern(BinaryFunction.division, SimplificationPattern.divOne);
+		standard.addPattern(BinaryFunction.multiplication, SimplificationPattern.constsMult);
+		standard.addPattern(BinaryFunction.addition, SimplificationPattern.constsAdd);
+		standard.addPattern(BinaryFunction.multiplication, SimplificationPattern.mulIntoDivLeft);
+		standard.addPattern(BinaryFunction.multiplication, SimplificationPattern.mulIntoDivRight);
+		standard.addPattern(BinaryFunction.addition, SimplificationPattern.factor);
+		standard.addPattern(BinaryFunction.subtraction, SimplificationPattern.factor);
+	}
+
+	/** Marks a subtree that is already in normal form. */
+	private static final Function UNCHANGED = new Constant();
+	/** Marks a subtree that is being rewritten, so is not rewritten again. */
+	private static final Function IN_PROGRESS = new Constant();
+
+	private IdentityHashMap<BinaryInstruction, ArrayList<SimplificationPattern>> binaryPatterns =
+			new IdentityHashMap<BinaryInstruction, ArrayList<SimplificationPattern>>();
+	private ArrayList<SimplificationPattern> otherPatterns = new ArrayList<SimplificationPattern>();
+
+	/**
+	 * Adds a pattern that can only match binary functions with the given
+	 * instruction at their root. Patterns are tried in the order they are added,
+	 * and should all be added before the engine is shared between threads.
+	 */
+	public void addPattern(BinaryInstruction root, SimplificationPattern pattern)
+	{
+		ArrayList<SimplificationPattern> patterns = binaryPatterns.get(root);
+		if (patterns == null) {
+			patterns = new ArrayList<SimplificationPattern>();
+			binaryPatterns.put(root, patterns);
+		}
+		patterns.add(pattern);
+	}
+
+	/**
+	 * Adds a pattern that is tried on every node that is not a binary
+	 * function, after any patterns indexed by instruction.
+	 */
+	public void addPattern(SimplificationPattern pattern)
+	{
+		otherPatterns.add(pattern);
+	}
+
+	/**
+	 * @param f - The function to be simplified, which is left unchanged.
+	 * @return The normal form of f. Equal subtrees of the result may be
+	 * shared, as may subtrees that were already in normal form in f.
+	 */
+	public Function simplify(Function f)
+	{
+		return rewrite(f, new HashMap<Function, Function>());
+	}
+
+	private Function rewrite(Function f, HashMap<Function, Function> normalForms)
+	{
+		Function done = normalForms.get(f);
+		if (done == UNCHANGED || done == IN_PROGRESS)
+			return f;
+		if (done != null)
+			return done;
+		normalForms.put(f, IN_PROGRESS);
+
+		int len = f.getChildCount();
+		Function[] newChildren = null;
+		for (int i = 0; i < len; i++)
+		{
+			Function child = f.getChild(i);
+			Function c = rewrite(child, normalForms);
+			if (c != child && newChildren == null)
+				newChildren = f.getChildren();
+			if (newChildren != null)
+				newChildren[i] = c;
+		}
+
+		Function node = f;
+		if (newChildren != null) 
+		{
+			node = f.withChildren(newChildren);
+			done = normalForms.get(node);
+			if (done != null && done != UNCHANGED && done != IN_PROGRESS) {
+				normalForms.put(f, done);
+				return done;
+			}
+			if (done != null) {
+				normalForms.put(f, node);
+				return node;
+			}
+			normalForms.put(node, IN_PROGRESS);
+		}
+
+		Function result = node;
+		SimplificationPattern pattern = findMatch(node);
+		if (pattern != null)
+			result = rewrite(pattern.transform(node), normalForms);
+
+		normalForms.put(f, result == f ? UNCHANGED : result);
+		if (node != f)
+			normalForms.put(node, result == node ? UNCHANGED : result);
+		if (result != f && result != node)
+			normalForms.put(result, UNCHANGED);
+		return result;
+	}
+
+	private SimplificationPattern findMatch(Function f)
+	{
+		if (f instanceof BinaryFunction)
+		{
+			ArrayList<SimplificationPattern> patterns =
+					binaryPatterns.get(((BinaryFunction) f).getInstruction());
+			if (patterns != null)
+				for (SimplificationPattern p : patterns)
+					if (p.matches(f))
+						return p;
+		}
+		else
+		{
+			for (SimplificationPattern p : otherPatterns)
+				if (p.matches(f))
+					return p;
+		}
+		return null;
+	}
+}
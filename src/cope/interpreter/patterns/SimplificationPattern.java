@@ -1,5 +1,6 @@
 package cope.interpreter.patterns;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Set;
 
@@ -28,13 +29,13 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f;
-			if (!b.getInstruction().getString().equals("*"))
+			if (!b.getInstruction().equals(BinaryFunction.multiplication))
 				return false;
 			
 			for (Function c : b.getChildren()) 
 			{
 				if (c instanceof Constant && 
-						((Constant) c).getValue() == 0)
+						((Constant) c).getDoubleValue() == 0)
 					return true;
 			}
 			
@@ -51,7 +52,7 @@ public interface SimplificationPattern
 			BinaryFunction b = (BinaryFunction) f;
 			if (b.getLeftChild() instanceof Constant) {
 				Constant c = (Constant) b.getLeftChild();
-				if (c.getValue() == 1)
+				if (c.getDoubleValue() == 1)
 					return b.getRightChild().clone();
 			}
 			return b.getLeftChild().clone();
@@ -63,13 +64,13 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f;
-			if (!b.getInstruction().getString().equals("*"))
+			if (!b.getInstruction().equals(BinaryFunction.multiplication))
 				return false;
 			
 			for (Function c : b.getChildren()) 
 			{
 				if (c instanceof Constant && 
-						((Constant) c).getValue() == 1)
+						((Constant) c).getDoubleValue() == 1)
 					return true;
 			}
 			
@@ -93,12 +94,12 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f; 
-			if (!b.getInstruction().getString().equals("/"))
+			if (!b.getInstruction().equals(BinaryFunction.division))
 				return false;
 			
 			if (b.getRightChild() instanceof Constant) {
 				Constant c = (Constant) b.getRightChild();
-				return c.getValue() == 1;
+				return c.getDoubleValue() == 1;
 			}
 			return false;
 		}
@@ -114,7 +115,7 @@ public interface SimplificationPattern
 			BinaryFunction b = (BinaryFunction) f;
 			if (b.getLeftChild() instanceof Constant) {
 				Constant c = (Constant) b.getLeftChild();
-				if (c.getValue() == 0)
+				if (c.getDoubleValue() == 0)
 					return b.getRightChild().clone();
 			}
 			return b.getLeftChild().clone();
@@ -127,13 +128,13 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f;
-			if (!b.getInstruction().getString().equals("+"))
+			if (!b.getInstruction().equals(BinaryFunction.addition))
 				return false;
 			
 			for (Function c : b.getChildren()) 
 			{
 				if (c instanceof Constant && 
-						((Constant) c).getValue() == 0)
+						((Constant) c).getDoubleValue() == 0)
 					return true;
 			}
 			
@@ -151,7 +152,7 @@ public interface SimplificationPattern
 			BinaryFunction b = (BinaryFunction) f;
 			Constant c1 = (Constant) b.getLeftChild();
 			Constant c2 = (Constant) b.getRightChild();
-			return new Constant(c1.getValue() * c2.getValue());
+			return new Constant(c1.getDoubleValue() * c2.getDoubleValue());
 		}
 
 		@Override
@@ -161,7 +162,7 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f;
-			if (!b.getInstruction().getString().equals("*"))
+			if (!b.getInstruction().equals(BinaryFunction.multiplication))
 				return false;
 			
 			return b.getLeftChild() instanceof Constant &&
@@ -180,7 +181,7 @@ public interface SimplificationPattern
 			BinaryFunction b = (BinaryFunction) f;
 			Constant c1 = (Constant) b.getLeftChild();
 			Constant c2 = (Constant) b.getRightChild();
-			return new Constant(c1.getValue() + c2.getValue());
+			return new Constant(c1.getDoubleValue() + c2.getDoubleValue());
 		}
 
 		@Override
@@ -190,7 +191,7 @@ public interface SimplificationPattern
 				return false;
 			
 			BinaryFunction b = (BinaryFunction) f;
-			if (!b.getInstruction().getString().equals("+"))
+			if (!b.getInstruction().equals(BinaryFunction.addition))
 				return false;
 			
 			return b.getLeftChild().getType().equals("constant") &&
@@ -226,13 +227,13 @@ public interface SimplificationPattern
 				return false;
 
 			BinaryFunction b1 = (BinaryFunction) f;
-			if (!b1.getInstruction().getString().equals("*"))
+			if (!b1.getInstruction().equals(BinaryFunction.multiplication))
 				return false;
 			
 			if (b1.getRightChild() instanceof BinaryFunction) 
 			{
 				BinaryFunction b2 = (BinaryFunction) b1.getRightChild();
-				return b2.getInstruction().getString().equals("/");
+				return b2.getInstruction().equals(BinaryFunction.division);
 			}
 			
 			return false;
@@ -267,13 +268,13 @@ public interface SimplificationPattern
 				return false;
 
 			BinaryFunction b1 = (BinaryFunction) f;
-			if (!b1.getInstruction().getString().equals("*"))
+			if (!b1.getInstruction().equals(BinaryFunction.multiplication))
 				return false;
 			
 			if (b1.getLeftChild() instanceof BinaryFunction) 
 			{
 				BinaryFunction b2 = (BinaryFunction) b1.getLeftChild();
-				return b2.getInstruction().getString().equals("/");
+				return b2.getInstruction().equals(BinaryFunction.division);
 			}
 			
 			return false;
@@ -291,35 +292,86 @@ public interface SimplificationPattern
 		else return new Constant(1);
 	}
 	
+	/**
+	 * Divides one occurrence of factor out of f: out of one side of a
+	 * product, out of both sides of a sum or difference, or out of a power of
+	 * factor with a constant exponent of at least 1, which is lowered by 1.
+	 * @return f divided by factor, or null if factor cannot be divided out of f.
+	 */
+	public static Function cancel(Function f, Function factor)
+	{
+		if (f.equals(factor))
+			return new Constant(1);
+		if (!(f instanceof BinaryFunction))
+			return null;
+		
+		BinaryFunction b = (BinaryFunction) f;
+		BinaryInstruction i = b.getInstruction();
+		Function l = b.getLeftChild(), r = b.getRightChild();
+		if (i.equals(BinaryFunction.multiplication))
+		{
+			Function c = cancel(l, factor);
+			if (c != null)
+				return f.withChildren(c, r);
+			c = cancel(r, factor);
+			return c == null ? null : f.withChildren(l, c);
+		}
+		if (i.equals(BinaryFunction.addition) || i.equals(BinaryFunction.subtraction))
+		{
+			Function cl = cancel(l, factor);
+			Function cr = cancel(r, factor);
+			return cl == null || cr == null ? null : f.withChildren(cl, cr);
+		}
+		// only constant exponents, so repeated factoring lowers them to below 1 and stops
+		if (i.equals(BinaryFunction.exponentiation) && l.equals(factor) && r instanceof Constant)
+		{
+			double n = ((Constant) r).getDoubleValue();
+			if (n >= 1)
+				return f.withChildren(l, new Constant(n - 1));
+		}
+		return null;
+	}
+	
+	/**
+	 * @return f with each of factors divided out of it once, or null if one
+	 * of them cannot be.
+	 */
 	public static Function cancel(Function f, Set<Function> factors)
 	{
 		for (Function fac : factors)
-			if (f.equals(fac))
-				return new Constant(1);
-
-		Function[] children = f.getChildren();
-		int len = children.length;
-		Function[] newChildren = new Function[len];
-		for (int i = 0; i < len; i++)
-			newChildren[i] = cancel(children[i], factors);
-		Function newF = f.clone();
-		newF.setChildren(newChildren);
-		return newF;
+		{
+			f = cancel(f, fac);
+			if (f == null)
+				return null;
+		}
+		return f;
 	}
 	
+	/**
+	 * Takes the common factors of a sum or difference out of it, so that
+	 * x*y + x^2 becomes x*(y + x^1).
+	 */
 	public static SimplificationPattern factor = new SimplificationPattern()
 	{
 
 		@Override
 		public Function transform(Function f) 
 		{
-			Set<Function> factors = f.getCommonFactors();
-
-			Iterator<Function> i = factors.iterator();
-			Function m = multiply(i);
+			ArrayList<Function> factors = new ArrayList<Function>();
+			Function rest = f;
+			for (Function fac : f.getCommonFactors())
+			{
+				Function c = cancel(rest, fac);
+				if (c != null) {
+					factors.add(fac);
+					rest = c;
+				}
+			}
+			if (factors.isEmpty())
+				return f;
 			
 			return new BinaryFunction(
-				m, cancel(f, factors), BinaryFunction.multiplication
+				multiply(factors.iterator()), rest, BinaryFunction.multiplication
 			);
 		}
 
@@ -335,8 +387,10 @@ public interface SimplificationPattern
 				|| b.getInstruction().equals(BinaryFunction.subtraction)))
 				return false;
 			
-			Set<Function> factors = f.getCommonFactors();
-			return factors.size() > 0;
+			for (Function fac : f.getCommonFactors())
+				if (cancel(f, fac) != null)
+					return true;
+			return false;
 		}
 		
 	};
@@ -357,9 +411,4 @@ public interface SimplificationPattern
 		}
 		
 	};
-	
-	public static SimplificationPattern[] patterns = new SimplificationPattern[] 
-	{
-		zeroMult, zeroAdd, oneMult, divOne, constsMult, constsAdd, mulIntoDivLeft, mulIntoDivRight, factor, divCancel
-	};
 }
@@ -10,4 +10,15 @@ public interface UnaryInstruction
 	 * used in the LaTeX mathmode environment.
 	 */
 	public String getLatex();
+
+	/**
+	 * Evaluates the instruction in double precision. By default this is the
+	 * result of evaluate(double), so an instruction written against the float
+	 * API keeps working; the standard instructions override it to keep the
+	 * full precision of their result.
+	 */
+	public default double evaluateDouble(double arg)
+	{
+		return evaluate(arg);
+	}
 }
@@ -0,0 +1,222 @@
+package cope.interpreter.solvers;
+
+import java.util.Arrays;
+
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.nodes.DerivativeCache;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Finds a local minimum of a function of several variables by the BFGS
+ * quasi-Newton method. Rather than computing second derivatives, it builds
+ * up an approximation of the inverse of the Hessian from how the gradient
+ * changes between steps, and so converges superlinearly near a minimum at
+ * the cost of the function and its gradient per step. Each step is
+ * shortened until it decreases the function enough, so the method always
+ * descends; if the approximation stops pointing downhill it is reset to a
+ * step down the gradient.
+ */
+public class BfgsMinimizer extends Solver
+{
+	/** The fraction of the decrease predicted by the slope a step must achieve. */
+	private static final double ARMIJO = 1e-4;
+
+	private int n;
+	private CompiledFunction function;
+	private CompiledFunction[] gradient;
+
+	private double value;
+	private double[] x, g, next, nextG, direction, y, hy;
+	private double[][] inverseHessian;
+
+	/**
+	 * @param f - The function to be minimized.
+	 * @param variables - The variables of f, in the order of the components
+	 * of points.
+	 * @throws Exception if f or one of its derivatives cannot be compiled.
+	 */
+	public BfgsMinimizer(Function f, String...variables) throws Exception
+	{
+		this.n = variables.length;
+		this.function = compile(f, variables);
+		this.gradient = compileGradient(f, new DerivativeCache(), variables);
+
+		x = new double[n];
+		g = new double[n];
+		next = new double[n];
+		nextG = new double[n];
+		direction = new double[n];
+		y = new double[n];
+		hy = new double[n];
+		inverseHessian = new double[n][n];
+	}
+
+	/**
+	 * @return The value of the function at the minimum found by the last
+	 * call to minimize.
+	 */
+	public double getValue() { return value; }
+
+	/**
+	 * Allocates a new array for the minimum; see minimize(double[], double[]).
+	 */
+	public double[] minimize(double[] start) throws Exception
+	{
+		double[] minimum = new double[n];
+		minimize(start, minimum);
+		return minimum;
+	}
+
+	/**
+	 * @param start - The point to start from, which is left unchanged.
+	 * @param minimum - The array the point of the minimum is written to.
+	 * @throws Exception if the method does not converge within the maximum
+	 * number of iterations.
+	 */
+	public void minimize(double[] start, double[] minimum) throws Exception
+	{
+		System.arraycopy(start, 0, x, 0, n);
+		double fx = function.applyAsDouble(x);
+		if (Double.isNaN(fx))
+			throw new Exception("Cannot start BFGS there: the function is undefined.");
+		evaluateGradient(x, g);
+		resetInverseHessian();
+		boolean reset = true;
+
+		boolean converged = isZero(g);
+		for (iterations = 0; !converged && iterations < maxIterations; iterations++)
+		{
+			double slope = 0;
+			for (int i = 0; i < n; i++)
+			{
+				double d = 0;
+				for (int j = 0; j < n; j++)
+					d -= inverseHessian[i][j] * g[j];
+				direction[i] = d;
+				slope += d * g[i];
+			}
+			if (!(slope < 0))
+			{
+				resetInverseHessian();
+				reset = true;
+				slope = 0;
+				for (int i = 0; i < n; i++)
+				{
+					direction[i] = -g[i];
+					slope -= g[i] * g[i];
+				}
+			}
+
+			double t = 1, fnext = move(t);
+			for (int h = 0; h < MAX_HALVINGS && !(fnext <= fx + ARMIJO * t * slope); h++)
+			{
+				t /= 2;
+				fnext = move(t);
+			}
+			if (!(fnext <= fx + ARMIJO * t * slope))
+			{
+				// not even a step down the gradient decreases the function
+				converged = reset;
+				resetInverseHessian();
+				reset = true;
+				continue;
+			}
+			evaluateGradient(next, nextG);
+
+			// the step is now t * direction, and y the change in the gradient
+			double sy = 0, yy = 0;
+			converged = true;
+			for (int i = 0; i < n; i++)
+			{
+				direction[i] *= t;
+				y[i] = nextG[i] - g[i];
+				sy += direction[i] * y[i];
+				yy += y[i] * y[i];
+				converged &= converged(direction[i], next[i]);
+			}
+			if (sy > 0)
+			{
+				if (reset)
+				{
+					// scale the first approximation to the curvature along the step
+					for (int i = 0; i < n; i++)
+						inverseHessian[i][i] = sy / yy;
+					reset = false;
+				}
+				update(sy);
+			}
+
+			double[] temp = x;
+			x = next;
+			next = temp;
+			temp = g;
+			g = nextG;
+			nextG = temp;
+			fx = fnext;
+			converged |= isZero(g);
+		}
+		if (!converged)
+			throw new Exception("BFGS did not converge in " + maxIterations + " iterations.");
+		value = fx;
+		System.arraycopy(x, 0, minimum, 0, n);
+	}
+
+	/**
+	 * Applies the BFGS update for the step in direction and the change in
+	 * the gradient in y to the approximate inverse Hessian H:
+	 * H += ((sy + y.Hy) s s' / sy - Hy s' - s (Hy)') / sy
+	 */
+	private void update(double sy)
+	{
+		double yhy = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double v = 0;
+			for (int j = 0; j < n; j++)
+				v += inverseHessian[i][j] * y[j];
+			hy[i] = v;
+			yhy += y[i] * v;
+		}
+		double a = (sy + yhy) / (sy * sy);
+		for (int i = 0; i < n; i++)
+		{
+			double[] row = inverseHessian[i];
+			double si = direction[i], hyi = hy[i];
+			for (int j = 0; j < n; j++)
+				row[j] += a * si * direction[j] - (hyi * direction[j] + si * hy[j]) / sy;
+		}
+	}
+
+	private void resetInverseHessian()
+	{
+		for (int i = 0; i < n; i++)
+		{
+			Arrays.fill(inverseHessian[i], 0);
+			inverseHessian[i][i] = 1;
+		}
+	}
+
+	/**
+	 * Sets next to x plus t times the direction, and evaluates it.
+	 */
+	private double move(double t)
+	{
+		for (int i = 0; i < n; i++)
+			next[i] = x[i] + t * direction[i];
+		return function.applyAsDouble(next);
+	}
+
+	private void evaluateGradient(double[] point, double[] out)
+	{
+		for (int i = 0; i < n; i++)
+			out[i] = gradient[i].applyAsDouble(point);
+	}
+
+	private boolean isZero(double[] v)
+	{
+		for (int i = 0; i < n; i++)
+			if (v[i] != 0)
+				return false;
+		return true;
+	}
+}
@@ -0,0 +1,126 @@
+package cope.interpreter.solvers;
+
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Finds a root of a function of one variable within a bracket, an interval
+ * over which the function changes sign, by Brent's method. Each step tries
+ * inverse quadratic interpolation or the secant method and falls back to
+ * bisecting the bracket when they would converge too slowly, so the root is
+ * always found, as quickly as the secant method for a smooth function and
+ * never much more slowly than bisection. If the function is discontinuous
+ * the point found may be a jump across 0 rather than a root.
+ */
+public class BrentSolver extends Solver
+{
+	private CompiledFunction function;
+	private double[] point = new double[1];
+
+	/**
+	 * @param f - The function whose root is to be found.
+	 * @param variable - The variable of f.
+	 * @throws Exception if f cannot be compiled.
+	 */
+	public BrentSolver(Function f, String variable) throws Exception
+	{
+		this.function = compile(f, variable);
+	}
+
+	/**
+	 * @param a - One end of the bracket.
+	 * @param b - The other end of the bracket.
+	 * @return A root of the function between a and b.
+	 * @throws Exception if the function does not change sign between a and b,
+	 * or the root is not found within the maximum number of iterations.
+	 */
+	public double solve(double a, double b) throws Exception
+	{
+		double fa = evaluate(a), fb = evaluate(b);
+		iterations = 0;
+		if (fa == 0)
+			return a;
+		if (fb == 0)
+			return b;
+		if (!(fa < 0 && fb > 0 || fa > 0 && fb < 0))
+			throw new Exception("Cannot find a root between " + a + " and " + b
+					+ ": the function is " + fa + " and " + fb + " there.");
+
+		// b is the best estimate, a the previous one, and c the other end of the bracket
+		double c = a, fc = fa, d = b - a, e = d;
+		for (; iterations < maxIterations; iterations++)
+		{
+			if (fb > 0 == fc > 0)
+			{
+				c = a;
+				fc = fa;
+				d = e = b - a;
+			}
+			if (Math.abs(fc) < Math.abs(fb))
+			{
+				a = b;
+				b = c;
+				c = a;
+				fa = fb;
+				fb = fc;
+				fc = fa;
+			}
+			double tol = 2 * Math.ulp(b) + tolerance * Math.max(1, Math.abs(b)) / 2;
+			double m = (c - b) / 2;
+			if (Math.abs(m) <= tol || fb == 0)
+				return b;
+
+			if (Math.abs(e) >= tol && Math.abs(fa) > Math.abs(fb))
+			{
+				double s = fb / fa, p, q;
+				if (a == c)
+				{
+					// secant
+					p = 2 * m * s;
+					q = 1 - s;
+				}
+				else
+				{
+					// inverse quadratic interpolation
+					double r = fb / fc;
+					q = fa / fc;
+					p = s * (2 * m * q * (q - r) - (b - a) * (r - 1));
+					q = (q - 1) * (r - 1) * (s - 1);
+				}
+				if (p > 0)
+					q = -q;
+				else
+					p = -p;
+				if (2 * p < Math.min(3 * m * q - Math.abs(tol * q), Math.abs(e * q)))
+				{
+					e = d;
+					d = p / q;
+				}
+				else
+				{
+					d = m;
+					e = m;
+				}
+			}
+			else
+			{
+				d = m;
+				e = m;
+			}
+			a = b;
+			fa = fb;
+			b += Math.abs(d) > tol ? d : m > 0 ? tol : -tol;
+			fb = evaluate(b);
+			if (Double.isNaN(fb))
+				throw new Exception("Cannot find a root between " + a + " and " + c
+						+ ": the function is undefined at " + b + ".");
+		}
+		throw new Exception("Brent's method did not converge in " + maxIterations + " iterations.");
+	}
+
+	private double evaluate(double x)
+	{
+		point[0] = x;
+		return function.applyAsDouble(point);
+	}
+}
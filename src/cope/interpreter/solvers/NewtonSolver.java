@@ -0,0 +1,74 @@
+package cope.interpreter.solvers;
+
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.nodes.DerivativeCache;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Finds a root of a function of one variable by Newton's method, which
+ * converges quadratically from a starting point close enough to a simple
+ * root. A step that does not reduce the size of the function, or leaves its
+ * domain, is halved until it does, so a poor starting point is less likely
+ * to be thrown far away. Newton's method is not guaranteed to converge; a
+ * BrentSolver is, given a bracket.
+ */
+public class NewtonSolver extends Solver
+{
+	private CompiledFunction function, derivative;
+	private double[] point = new double[1];
+
+	/**
+	 * @param f - The function whose root is to be found.
+	 * @param variable - The variable of f.
+	 * @throws Exception if f or its derivative cannot be compiled.
+	 */
+	public NewtonSolver(Function f, String variable) throws Exception
+	{
+		this.function = compile(f, variable);
+		this.derivative = compileGradient(f, new DerivativeCache(), variable)[0];
+	}
+
+	/**
+	 * @param x0 - The point to start from.
+	 * @return A root of the function.
+	 * @throws Exception if the derivative vanishes or the method does not
+	 * converge within the maximum number of iterations.
+	 */
+	public double solve(double x0) throws Exception
+	{
+		double x = x0, fx = evaluate(function, x);
+		if (Double.isNaN(fx))
+			throw new Exception("Cannot start Newton's method at " + x0 + ": the function is undefined there.");
+		for (iterations = 0; iterations < maxIterations; )
+		{
+			if (fx == 0)
+				return x;
+			double d = evaluate(derivative, x);
+			if (d == 0 || Double.isNaN(d) || Double.isInfinite(d))
+				throw new Exception("Newton's method stalled at " + x + ": the derivative is " + d + ".");
+			iterations++;
+
+			double step = fx / d;
+			double next = x - step, fnext = evaluate(function, next);
+			for (int i = 0; i < MAX_HALVINGS && !(Math.abs(fnext) < Math.abs(fx)); i++)
+			{
+				step /= 2;
+				next = x - step;
+				fnext = evaluate(function, next);
+			}
+			if (Double.isNaN(fnext))
+				throw new Exception("Newton's method left the domain of the function at " + x + ".");
+			x = next;
+			fx = fnext;
+			if (converged(step, x))
+				return x;
+		}
+		throw new Exception("Newton's method did not converge in " + maxIterations + " iterations.");
+	}
+
+	private double evaluate(CompiledFunction f, double x)
+	{
+		point[0] = x;
+		return f.applyAsDouble(point);
+	}
+}
@@ -0,0 +1,189 @@
+package cope.interpreter.solvers;
+
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.nodes.DerivativeCache;
+import cope.interpreter.nodes.Function;
+
+/**
+ * Solves a system of as many equations as variables, each equation being a
+ * function that is 0 at the solution, by Newton's method. Each step solves
+ * the linear system of the Jacobian, the matrix of partial derivatives of
+ * every equation with respect to every variable, by Gaussian elimination.
+ * A step that does not reduce the sum of the squares of the equations, or
+ * leaves their domain, is halved until it does.
+ */
+public class NewtonSystemSolver extends Solver
+{
+	private int n;
+	private CompiledFunction[] equations;
+	private CompiledFunction[][] jacobian;
+
+	private double[] x, values, next, nextValues, step;
+	private double[][] matrix;
+
+	/**
+	 * @param equations - The functions that are all 0 at the solution.
+	 * @param variables - The variables of the equations, in the order of the
+	 * components of points.
+	 * @throws Exception if there are not as many equations as variables, or
+	 * an equation or one of its derivatives cannot be compiled.
+	 */
+	public NewtonSystemSolver(Function[] equations, String...variables) throws Exception
+	{
+		this.n = variables.length;
+		if (equations.length != n)
+			throw new Exception("Cannot solve " + equations.length + " equations in "
+					+ n + " variables with Newton's method.");
+		this.equations = new CompiledFunction[n];
+		this.jacobian = new CompiledFunction[n][];
+		DerivativeCache cache = new DerivativeCache();
+		for (int i = 0; i < n; i++)
+		{
+			this.equations[i] = compile(equations[i], variables);
+			this.jacobian[i] = compileGradient(equations[i], cache, variables);
+		}
+
+		x = new double[n];
+		values = new double[n];
+		next = new double[n];
+		nextValues = new double[n];
+		step = new double[n];
+		matrix = new double[n][n];
+	}
+
+	/**
+	 * Allocates a new array for the solution; see solve(double[], double[]).
+	 */
+	public double[] solve(double[] start) throws Exception
+	{
+		double[] solution = new double[n];
+		solve(start, solution);
+		return solution;
+	}
+
+	/**
+	 * @param start - The point to start from, which is left unchanged.
+	 * @param solution - The array the solution is written to.
+	 * @throws Exception if the Jacobian is singular or the method does not
+	 * converge within the maximum number of iterations.
+	 */
+	public void solve(double[] start, double[] solution) throws Exception
+	{
+		System.arraycopy(start, 0, x, 0, n);
+		double norm = evaluate(x, values);
+		if (Double.isNaN(norm))
+			throw new Exception("Cannot start Newton's method there: the equations are undefined.");
+		boolean converged = norm == 0;
+		for (iterations = 0; !converged && iterations < maxIterations; )
+		{
+			for (int i = 0; i < n; i++)
+			{
+				for (int j = 0; j < n; j++)
+					matrix[i][j] = jacobian[i][j].applyAsDouble(x);
+				step[i] = -values[i];
+			}
+			if (!solveLinear(matrix, step, n))
+				throw new Exception("Newton's method stalled: the Jacobian is singular.");
+			iterations++;
+
+			double nextNorm = move(1);
+			double scale = 1;
+			for (int h = 0; h < MAX_HALVINGS && !(nextNorm < norm); h++)
+			{
+				scale /= 2;
+				nextNorm = move(scale);
+			}
+			if (Double.isNaN(nextNorm))
+				throw new Exception("Newton's method left the domain of the equations.");
+
+			converged = nextNorm == 0 || isSmall(scale);
+			double[] t = x;
+			x = next;
+			next = t;
+			t = values;
+			values = nextValues;
+			nextValues = t;
+			norm = nextNorm;
+		}
+		if (!converged)
+			throw new Exception("Newton's method did not converge in " + maxIterations + " iterations.");
+		System.arraycopy(x, 0, solution, 0, n);
+	}
+
+	/**
+	 * Sets next to x plus scale times the step, and evaluates it.
+	 * @return The sum of the squares of the equations at next.
+	 */
+	private double move(double scale)
+	{
+		for (int i = 0; i < n; i++)
+			next[i] = x[i] + scale * step[i];
+		return evaluate(next, nextValues);
+	}
+
+	/**
+	 * @return Whether scale times the step is small enough to stop at next.
+	 */
+	private boolean isSmall(double scale)
+	{
+		for (int i = 0; i < n; i++)
+			if (!converged(scale * step[i], next[i]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * @return The sum of the squares of the equations at point.
+	 */
+	private double evaluate(double[] point, double[] out)
+	{
+		double norm = 0;
+		for (int i = 0; i < n; i++)
+		{
+			double v = equations[i].applyAsDouble(point);
+			out[i] = v;
+			norm += v * v;
+		}
+		return norm;
+	}
+
+	/**
+	 * Solves a * x = b by Gaussian elimination with partial pivoting,
+	 * overwriting a and leaving x in b.
+	 * @return false if a is singular.
+	 */
+	static boolean solveLinear(double[][] a, double[] b, int n)
+	{
+		for (int k = 0; k < n; k++)
+		{
+			int pivot = k;
+			for (int i = k + 1; i < n; i++)
+				if (Math.abs(a[i][k]) > Math.abs(a[pivot][k]))
+					pivot = i;
+			if (a[pivot][k] == 0 || Double.isNaN(a[pivot][k]))
+				return false;
+			double[] row = a[k];
+			a[k] = a[pivot];
+			a[pivot] = row;
+			double t = b[k];
+			b[k] = b[pivot];
+			b[pivot] = t;
+
+			for (int i = k + 1; i < n; i++)
+			{
+				double factor = a[i][k] / a[k][k];
+				for (int j = k + 1; j < n; j++)
+					a[i][j] -= factor * a[k][j];
+				b[i] -= factor * b[k];
+			}
+		}
+		for (int k = n - 1; k >= 0; k--)
+		{
+			double sum = b[k];
+			for (int j = k + 1; j < n; j++)
+				sum -= a[k][j] * b[j];
+			b[k] = sum / a[k][k];
+		}
+		return true;
+	}
+}
@@ -0,0 +1,82 @@
+package cope.interpreter.solvers;
+
+import cope.interpreter.Variable;
+import cope.interpreter.compiler.Canonicalizer;
+import cope.interpreter.compiler.CompiledFunction;
+import cope.interpreter.compiler.FunctionCompiler;
+import cope.interpreter.nodes.DerivativeCache;
+import cope.interpreter.nodes.Function;
+
+/**
+ * The settings shared by the solvers, and the compilation of the functions
+ * and derivatives they evaluate. Each function is differentiated
+ * symbolically once, its derivatives canonicalized to fold away the
+ * constants differentiation leaves, and all of them compiled, so an
+ * iteration only evaluates compiled code on arrays allocated when the
+ * solver was created.
+ *
+ * Powers with a constant exponent, such as (1-x)^2, are differentiated by
+ * the power rule, so their derivatives hold no ln(1-x) and are defined
+ * wherever the base is negative.
+ *
+ * A solver reuses its working arrays between solves, so must not be shared
+ * between threads.
+ */
+public abstract class Solver
+{
+	/** The number of times a step that makes no progress is halved before it is taken anyway. */
+	protected static final int MAX_HALVINGS = 30;
+
+	private static final FunctionCompiler compiler = new FunctionCompiler();
+	private static final Canonicalizer canonicalizer = new Canonicalizer();
+
+	protected double tolerance = 1e-12;
+	protected int maxIterations = 100;
+	protected int iterations = 0;
+
+	/**
+	 * @param tolerance - The relative size of a step small enough that the
+	 * solution is taken to have been found. The default is 1e-12.
+	 */
+	public void setTolerance(double tolerance) { this.tolerance = tolerance; }
+	public double getTolerance() { return tolerance; }
+
+	/**
+	 * @param maxIterations - The most steps taken before giving up. The
+	 * default is 100.
+	 */
+	public void setMaxIterations(int maxIterations) { this.maxIterations = maxIterations; }
+	public int getMaxIterations() { return maxIterations; }
+
+	/**
+	 * @return The number of steps taken by the last solve.
+	 */
+	public int getIterations() { return iterations; }
+
+	/**
+	 * @return Whether a step of size step from x is small enough to stop.
+	 */
+	protected boolean converged(double step, double x)
+	{
+		return Math.abs(step) <= tolerance * Math.max(1, Math.abs(x));
+	}
+
+	protected static CompiledFunction compile(Function f, String...variables) throws Exception
+	{
+		return compiler.compile(canonicalizer.canonicalize(f, variables), variables);
+	}
+
+	/**
+	 * Compiles the partial derivative of f with respect to each variable.
+	 * @param cache - The cache of derivatives, shared between the functions
+	 * of a system so their common subtrees are differentiated once.
+	 */
+	protected static CompiledFunction[] compileGradient(Function f, DerivativeCache cache,
+			String...variables) throws Exception
+	{
+		CompiledFunction[] gradient = new CompiledFunction[variables.length];
+		for (int i = 0; i < variables.length; i++)
+			gradient[i] = compile(f.differentiate(new Variable(variables[i]), cache), variables);
+		return gradient;
+	}
+}